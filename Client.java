@@ -1,12 +1,21 @@
 import java.net.*;
+import java.util.Arrays;
 import java.util.Random;
 
 public class Client {
 
     public static final int MIN_PORT = 1;
     public static final int MAX_PORT = 65535;
+    // udp payload size advertised to the resolver with EDNS(0)
+    public static final int EDNS_PAYLOAD_SIZE = 1232;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--load")) {
+            // load generator mode
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Client.argumentValidation(args);
 
         String resolverIP = args[0];
@@ -31,7 +40,7 @@ public class Client {
             socket.send(sendPacket);
 
             // Prepare a UDP packet to receive data into
-            byte[] responseBuffer = new byte[512]; // will be trucncated this no overflow is possible
+            byte[] responseBuffer = new byte[Client.EDNS_PAYLOAD_SIZE]; // the size advertised in the query, anything bigger gets TC set
             DatagramPacket receivePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
 
             // Wait for the response from the DNS resolver
@@ -56,7 +65,7 @@ public class Client {
         }
     }
 
-    private static int getTypeAsInt(String type) {
+    static int getTypeAsInt(String type) {
         type = type.toLowerCase();
         switch(type) {
             case ("a"):
@@ -222,12 +231,15 @@ public class Client {
 
         DNSMessage dnsQuery = new DNSMessage(header);
         dnsQuery.addQuestion(question);
+        // EDNS(0) so responses bigger than 512 bytes arent truncated
+        dnsQuery.addAdditional(DNSResourceRecord.opt(Client.EDNS_PAYLOAD_SIZE));
 
         return dnsQuery;
     }
 
     public static void usageMessage() {
         System.err.println("Usage: java Client resolver_ip resolver_port name timeout type");
+        System.err.println("       java Client --load resolver_ip resolver_port names_file qps duration_secs [--sockets=n] [--timeout-ms=n] [--type=type]");
     }
 
     public static String typeIPAnswer(byte[] rdata) {
@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+// in memory cache of resolved answers keyed by (qname, qtype, qclass)
+// entries live for the smallest ttl of their answer records and the ttls handed out
+// are counted down by how long the entry has been cached
+// negative answers (nxdomain and nodata) can be cached too, they live for the negative
+// ttl taken from the soa record in the authority section (RFC 2308)
+// popular entries that are asked for near the end of their ttl are handed to a prefetcher
+// so they can be refreshed before they expire
+// expired entries can be kept a while longer to answer with when resolving fails (RFC 8767)
+// the cache is split into stripes that each have their own lock so queries for
+// different names dont wait on each other, and each stripe evicts its least recently used entry
+
+public class DNSCache {
+    // longest an entry is kept no matter what ttl the server gave
+    public static final int MAX_TTL = 86400;
+    // longest a negative answer is kept, RFC 2308 suggests 3 hours
+    public static final int MAX_NEGATIVE_TTL = 10800;
+    // an entry is prefetched when asked for in the last tenth of its ttl
+    public static final double PREFETCH_WINDOW = 0.1;
+    // and only if it was asked for at least this many times before that
+    public static final int PREFETCH_MIN_HITS = 2;
+    // ttl given to stale records, RFC 8767 recommends 30 seconds
+    public static final int STALE_TTL = 30;
+
+    private final Stripe[] stripes;
+    // how long an entry is kept after it expires so it can still be served stale
+    private final long staleWindowMillis;
+    // called with the query that hit an entry worth refreshing, or null if nothing is prefetched
+    // returns false if it couldnt take the query right now so a later hit can try again
+    private volatile Predicate<DNSMessage> prefetcher;
+
+    public DNSCache(int maxEntries, int stripeCount, int staleWindowSecs) {
+        this.staleWindowMillis = staleWindowSecs * 1000L;
+        this.stripes = new Stripe[stripeCount];
+        int stripeCapacity = Math.max(1, maxEntries / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    public void setPrefetcher(Predicate<DNSMessage> prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    // returns a response built from the cache for the query, or null if nothing fresh is cached
+    public DNSMessage get(DNSMessage dnsQuery) {
+        DNSQuestion question = dnsQuery.questions.get(0);
+        String key = DNSCache.key(question.qName, question.qType, question.qClass);
+        Stripe stripe = this.stripeFor(key);
+
+        Entry entry;
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            entry = stripe.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now >= entry.expiresAt) {
+                // kept around while it can still be served stale
+                if (now >= entry.expiresAt + this.staleWindowMillis) {
+                    stripe.remove(key);
+                }
+                return null;
+            }
+        }
+
+        Predicate<DNSMessage> entryPrefetcher = this.prefetcher;
+        if (entryPrefetcher != null && entry.shouldPrefetch(now) && !entryPrefetcher.test(dnsQuery)) {
+            entry.prefetched.set(false);
+        }
+        return entry.toResponse(dnsQuery, now, false);
+    }
+
+    // returns a response from an expired entry that is still inside the stale window, or null
+    // every record in it has the stale ttl
+    public DNSMessage getStale(DNSMessage dnsQuery) {
+        DNSQuestion question = dnsQuery.questions.get(0);
+        String key = DNSCache.key(question.qName, question.qType, question.qClass);
+        Stripe stripe = this.stripeFor(key);
+
+        Entry entry;
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            entry = stripe.get(key);
+            if (entry == null || now >= entry.expiresAt + this.staleWindowMillis) {
+                return null;
+            }
+        }
+        return entry.toResponse(dnsQuery, now, true);
+    }
+
+    // stores the answers of a response if it actually answers the question
+    public void put(DNSMessage dnsQuery, DNSMessage dnsResponse) {
+        if (dnsResponse.header.rcode != 0 || dnsResponse.questions.isEmpty()) {
+            return;
+        }
+
+        // assumes only 1 question
+        int answeredType = dnsResponse.questions.get(0).qType;
+        boolean answered = false;
+        int ttl = DNSCache.MAX_TTL;
+        for (DNSResourceRecord answer : dnsResponse.answers) {
+            if (answer.type == answeredType) {
+                answered = true;
+            }
+            // ttl is unsigned on the wire, anything past the signed range is treated as the max
+            ttl = Math.min(ttl, answer.ttl < 0 ? DNSCache.MAX_TTL : answer.ttl);
+        }
+        if (!answered || ttl <= 0) {
+            return;
+        }
+
+        DNSQuestion question = dnsQuery.questions.get(0);
+        String key = DNSCache.key(question.qName, question.qType, question.qClass);
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(dnsResponse, 0, new ArrayList<>(), now, now + ttl * 1000L);
+        this.store(key, entry);
+    }
+
+    // stores a nxdomain or nodata response, it is skipped if there is no soa to take the negative ttl from
+    public void putNegative(DNSMessage dnsQuery, DNSMessage dnsResponse) {
+        int ttl = DNSCache.negativeTtl(dnsResponse);
+        if (ttl <= 0 || dnsResponse.questions.isEmpty()) {
+            return;
+        }
+
+        DNSQuestion question = dnsQuery.questions.get(0);
+        String key = DNSCache.key(question.qName, question.qType, question.qClass);
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(dnsResponse, dnsResponse.header.rcode, dnsResponse.authorities, now, now + ttl * 1000L);
+        this.store(key, entry);
+    }
+
+    // nxdomain, or no error but nothing of the asked type in the answers
+    public static boolean isNegative(DNSMessage dnsResponse) {
+        if (dnsResponse.header.rcode == 3) {
+            return true;
+        }
+        if (dnsResponse.header.rcode != 0 || dnsResponse.questions.isEmpty()) {
+            return false;
+        }
+
+        // assumes only 1 question
+        int answeredType = dnsResponse.questions.get(0).qType;
+        for (DNSResourceRecord answer : dnsResponse.answers) {
+            if (answer.type == answeredType) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the smaller of the soa ttl and the soa minimum field, or -1 if there is no soa
+    public static int negativeTtl(DNSMessage dnsResponse) {
+        for (DNSResourceRecord authority : dnsResponse.authorities) {
+            if (authority.type != 6 || authority.rdata.length < 20) {
+                continue;
+            }
+            // minimum is the last 4 bytes of the rdata, after the two names and the
+            // serial, refresh, retry and expire fields, so the names dont need decoding
+            int index = authority.rdata.length - 4;
+            int minimum = ((authority.rdata[index] & 0xFF) << 24)
+                | ((authority.rdata[index + 1] & 0xFF) << 16)
+                | ((authority.rdata[index + 2] & 0xFF) << 8)
+                | (authority.rdata[index + 3] & 0xFF);
+            int soaTtl = authority.ttl < 0 ? DNSCache.MAX_NEGATIVE_TTL : authority.ttl;
+            minimum = minimum < 0 ? DNSCache.MAX_NEGATIVE_TTL : minimum;
+            return Math.min(DNSCache.MAX_NEGATIVE_TTL, Math.min(soaTtl, minimum));
+        }
+        return -1;
+    }
+
+    public static String key(String qName, int qType, int qClass) {
+        // names are case insensitive
+        return qName.toLowerCase() + "/" + qType + "/" + qClass;
+    }
+
+    private void store(String key, Entry entry) {
+        Stripe stripe = this.stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    private Stripe stripeFor(String key) {
+        return this.stripes[(key.hashCode() & 0x7FFFFFFF) % this.stripes.length];
+    }
+
+    private static class Entry {
+        // the records are detached from the message they came from so a cached answer
+        // only keeps its own records and not the whole upstream response
+        private final DNSQuestion question;
+        private final int rcode;
+        private final List<DNSResourceRecord> answers;
+        private final List<DNSResourceRecord> authorities;
+        private final long storedAt;
+        private final long expiresAt;
+        private final AtomicInteger hits = new AtomicInteger();
+        // set once the entry has been handed to the prefetcher so it only happens once,
+        // cleared again if the prefetcher turned it down
+        private final AtomicBoolean prefetched = new AtomicBoolean();
+
+        private Entry(DNSMessage dnsResponse, int rcode, List<DNSResourceRecord> authorities, long storedAt, long expiresAt) {
+            this.question = new DNSQuestion(dnsResponse.questions.get(0));
+            this.rcode = rcode;
+            this.answers = Entry.detached(dnsResponse.answers);
+            this.authorities = Entry.detached(authorities);
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        private static List<DNSResourceRecord> detached(List<DNSResourceRecord> records) {
+            List<DNSResourceRecord> detachedRecords = new ArrayList<>(records.size());
+            for (DNSResourceRecord record : records) {
+                detachedRecords.add(record.detached());
+            }
+            return detachedRecords;
+        }
+
+        // counts the hit and says whether this is a popular entry close enough to expiring to be refreshed
+        private boolean shouldPrefetch(long now) {
+            int previousHits = this.hits.getAndIncrement();
+            long prefetchFrom = this.expiresAt - (long) ((this.expiresAt - this.storedAt) * DNSCache.PREFETCH_WINDOW);
+            return now >= prefetchFrom && previousHits >= DNSCache.PREFETCH_MIN_HITS && this.prefetched.compareAndSet(false, true);
+        }
+
+        private DNSMessage toResponse(DNSMessage dnsQuery, long now, boolean stale) {
+            DNSHeader queryHeader = dnsQuery.header;
+            // int id, boolean qr, int opcode, boolean aa, boolean tc, boolean rd, boolean ra, int rcode
+            DNSHeader header = new DNSHeader(queryHeader.id, true, queryHeader.opcode, false, false, queryHeader.rd, false, this.rcode);
+            DNSMessage dnsResponse = new DNSMessage(header);
+            dnsResponse.addQuestion(new DNSQuestion(this.question));
+
+            int elapsedSecs = (int) ((now - this.storedAt) / 1000);
+            for (DNSResourceRecord answer : this.answers) {
+                dnsResponse.addAnswer(Entry.countedDown(answer, elapsedSecs, stale));
+            }
+            for (DNSResourceRecord authority : this.authorities) {
+                dnsResponse.addAuthority(Entry.countedDown(authority, elapsedSecs, stale));
+            }
+            return dnsResponse;
+        }
+
+        private static DNSResourceRecord countedDown(DNSResourceRecord record, int elapsedSecs, boolean stale) {
+            if (stale) {
+                return new DNSResourceRecord(record, DNSCache.STALE_TTL);
+            }
+            int ttl = record.ttl < 0 ? DNSCache.MAX_TTL : record.ttl;
+            return new DNSResourceRecord(record, Math.max(0, ttl - elapsedSecs));
+        }
+    }
+
+    // only used while holding its lock
+    private static class Stripe {
+        private final int capacity;
+        // access order so the first entry is the least recently used one
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private Entry get(String key) {
+            return this.entries.get(key);
+        }
+
+        private void remove(String key) {
+            this.entries.remove(key);
+        }
+
+        private void put(String key, Entry entry) {
+            this.entries.put(key, entry);
+            if (this.entries.size() > this.capacity) {
+                Iterator<String> eldest = this.entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// writes a DNSMessage into wire format in one pass with names compressed (RFC 1035 4.1.4)
+// every thread has its own encoder with a buffer that is reused for every message,
+// so encoding makes next to no garbage
+// the buffer returned by encode is only valid until the same thread encodes another message,
+// anything that has to keep the bytes should copy them (like DNSMessage.toByteArray does)
+
+public class DNSEncoder {
+    // largest a dns message can be (the tcp length prefix is 16 bits)
+    public static final int MAX_MESSAGE_SIZE = 65535;
+    // most names remembered for compression in one message
+    public static final int MAX_COMPRESSION_TARGETS = 256;
+
+    private static final ThreadLocal<DNSEncoder> encoders = ThreadLocal.withInitial(DNSEncoder::new);
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    // offsets of every name (and the rest of it after each label) written so far
+    private final int[] nameOffsets = new int[MAX_COMPRESSION_TARGETS];
+    private int nameCount;
+
+    // encodes the message into this threads buffer and returns a view of the written bytes,
+    // the view starts at index 0 of its backing array
+    public static ByteBuffer encode(DNSMessage dnsMessage) {
+        return DNSEncoder.encoders.get().write(dnsMessage, false, null, true, true);
+    }
+
+    // encodes the message with any OPT record in it replaced by opt (or left out if opt is null),
+    // fitted into maxSize bytes
+    // if it doesnt fit the additional records are left out, and if it still doesnt fit all records
+    // are left out and TC is set so the client asks again over tcp (RFC 2181 9)
+    public static ByteBuffer encode(DNSMessage dnsMessage, DNSResourceRecord opt, int maxSize) {
+        DNSEncoder encoder = DNSEncoder.encoders.get();
+        ByteBuffer encoded = encoder.write(dnsMessage, true, opt, true, true);
+        if (encoded.remaining() > maxSize) {
+            encoded = encoder.write(dnsMessage, true, opt, true, false);
+        }
+        if (encoded.remaining() > maxSize) {
+            encoded = encoder.write(dnsMessage, true, opt, false, false);
+        }
+        return encoded;
+    }
+
+    private ByteBuffer write(DNSMessage dnsMessage, boolean replaceOpt, DNSResourceRecord opt, boolean withRecords, boolean withAdditionals) {
+        this.buffer.clear();
+        this.nameCount = 0;
+
+        DNSHeader header = dnsMessage.header;
+        this.buffer.putShort((short) header.id);
+
+        // records only get left out when they dont fit
+        boolean truncated = header.tc || (!withRecords && (!dnsMessage.answers.isEmpty() || !dnsMessage.authorities.isEmpty()));
+        // automatically sets z to all 000
+        short flags = (short) (
+                (header.qr ? 0x8000 : 0) |
+                (header.opcode & 0x7800) |
+                (header.aa ? 0x0400 : 0) |
+                (truncated ? 0x0200 : 0) |
+                (header.rd ? 0x0100 : 0) |
+                (header.ra ? 0x0080 : 0) |
+                (0x0000) |
+                (header.rcode & 0x000F)
+        );
+        this.buffer.putShort(flags);
+
+        // qdcount, then ancount, nscount and arcount are filled in once its known what was written
+        this.buffer.putShort((short) dnsMessage.questions.size());
+        this.buffer.position(12);
+
+        for (DNSQuestion question : dnsMessage.questions) {
+            this.putName(question.qName);
+            this.buffer.putShort((short) question.qType);
+            this.buffer.putShort((short) question.qClass);
+        }
+
+        // answer, authority and additional records are all written the same way
+        int ancount = 0;
+        int nscount = 0;
+        int arcount = 0;
+        if (withRecords) {
+            ancount = this.putRecords(dnsMessage.answers, false);
+            nscount = this.putRecords(dnsMessage.authorities, false);
+        }
+        if (withAdditionals) {
+            arcount = this.putRecords(dnsMessage.additionals, replaceOpt);
+        }
+        if (opt != null) {
+            this.putRecord(opt);
+            arcount++;
+        }
+        this.buffer.putShort(6, (short) ancount);
+        this.buffer.putShort(8, (short) nscount);
+        this.buffer.putShort(10, (short) arcount);
+
+        ByteBuffer written = this.buffer.duplicate();
+        written.flip();
+        return written;
+    }
+
+    // returns how many records were written
+    private int putRecords(List<DNSResourceRecord> records, boolean skipOpt) {
+        int written = 0;
+        for (int i = 0; i < records.size(); i++) {
+            DNSResourceRecord record = records.get(i);
+            if (skipOpt && record.type == DNSMessage.OPT_TYPE) {
+                continue;
+            }
+            this.putRecord(record);
+            written++;
+        }
+        return written;
+    }
+
+    // writes the record with its names rewritten against this message, the records own bytes
+    // may hold pointers into the message it came from which mean nothing here
+    private void putRecord(DNSResourceRecord record) {
+        String ownerName = record.getOwnerName();
+        if (ownerName != null) {
+            this.putName(ownerName);
+        } else {
+            this.buffer.put(record.name);
+        }
+        this.buffer.putShort((short) record.type);
+        this.buffer.putShort((short) record.classValue);
+        this.buffer.putInt(record.ttl);
+
+        // rdlength is filled in once the rdata is written since compressing can change it
+        int rdlengthIndex = this.buffer.position();
+        this.buffer.putShort((short) 0);
+        int rdataStart = this.buffer.position();
+        int nameCountBefore = this.nameCount;
+        if (!this.putRdataNames(record)) {
+            // forget any names from a half written rdata before copying it as is
+            this.buffer.position(rdataStart);
+            this.nameCount = nameCountBefore;
+            this.buffer.put(record.rdata);
+        }
+        this.buffer.putShort(rdlengthIndex, (short) (this.buffer.position() - rdataStart));
+    }
+
+    // writes the rdata of the types that hold names with those names compressed,
+    // returns false if the type has no names or they cant be decoded so the rdata is copied as is
+    private boolean putRdataNames(DNSResourceRecord record) {
+        DNSResourceRecord.RdataNames rdataNames = record.getRdataNames();
+        if (rdataNames == null) {
+            return false;
+        }
+        this.buffer.put(record.rdata, 0, rdataNames.start);
+        for (String name : rdataNames.names) {
+            this.putName(name);
+        }
+        this.buffer.put(record.rdata, rdataNames.end, record.rdata.length - rdataNames.end);
+        return true;
+    }
+
+    // writes the name, pointing back at an earlier copy of the rest of it as soon as there is one
+    private void putName(String name) {
+        int start = 0;
+        int length = name.length();
+        while (start < length) {
+            int pointer = this.findWritten(name, start);
+            if (pointer >= 0) {
+                this.buffer.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            // pointers only have 14 bits for the offset
+            if (this.buffer.position() <= 0x3FFF && this.nameCount < this.nameOffsets.length) {
+                this.nameOffsets[this.nameCount++] = this.buffer.position();
+            }
+
+            int dotIndex = name.indexOf('.', start);
+            int end = dotIndex < 0 ? length : dotIndex;
+            this.buffer.put((byte) (end - start));
+            for (int i = start; i < end; i++) {
+                this.buffer.put((byte) name.charAt(i));
+            }
+            start = dotIndex < 0 ? length : dotIndex + 1;
+        }
+        this.buffer.put((byte) 0x00); // null label of the root
+    }
+
+    // offset of an already written name that is the same as the name from start onwards, or -1
+    private int findWritten(String name, int start) {
+        for (int i = 0; i < this.nameCount; i++) {
+            if (this.matchesWritten(this.nameOffsets[i], name, start)) {
+                return this.nameOffsets[i];
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchesWritten(int offset, String name, int start) {
+        int nameIndex = start;
+        int hops = 0;
+        while (true) {
+            int labelLength = this.buffer.get(offset) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (++hops > DNSName.MAX_POINTER_HOPS) {
+                    return false;
+                }
+                offset = ((labelLength & 0x3F) << 8) | (this.buffer.get(offset + 1) & 0xFF);
+                continue;
+            }
+            if (labelLength == 0) {
+                return nameIndex >= name.length();
+            }
+            if (nameIndex >= name.length()) {
+                return false;
+            }
+
+            int dotIndex = name.indexOf('.', nameIndex);
+            int end = dotIndex < 0 ? name.length() : dotIndex;
+            if (end - nameIndex != labelLength) {
+                return false;
+            }
+            for (int i = 0; i < labelLength; i++) {
+                if (this.buffer.get(offset + 1 + i) != (byte) name.charAt(nameIndex + i)) {
+                    return false;
+                }
+            }
+            offset += labelLength + 1;
+            nameIndex = dotIndex < 0 ? name.length() : dotIndex + 1;
+        }
+    }
+}
@@ -1,4 +1,7 @@
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 // stores info of a dns message in a more parsable and editable way
 // hence can create one vaible certain instructions
@@ -7,12 +10,24 @@ import java.util.ArrayList;
     // getting certain info
 
 public class DNSMessage {
+    // type of the EDNS(0) OPT pseudo record (RFC 6891), it sits in the additional section
+    public static final int OPT_TYPE = 41;
+    // largest udp message a sender that doesnt use EDNS(0) can take
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
     public DNSHeader header;
     public ArrayList<DNSQuestion> questions = new ArrayList<>();
     public ArrayList<DNSResourceRecord> answers = new ArrayList<>();
     public ArrayList<DNSResourceRecord> authorities = new ArrayList<>();
     public ArrayList<DNSResourceRecord> additionals = new ArrayList<>();
 
+    // the bytes the message was parsed from, compression pointers are followed in these
+    // null for messages built up in code
+    private byte[] wireBytes;
+    // names already decoded from an offset in the wire bytes so repeated suffixes are only decoded once
+    // made on the first name decoded since most messages never have one, names are decoded on one thread
+    private Map<Integer, String> decodedNames;
+
 	public DNSHeader getHeader() {
 		return this.header;
 	}
@@ -41,8 +56,29 @@ public class DNSMessage {
         this.additionals.add(additional);
     }
 
-    // assume bytes is 512 bytes long
+    // the OPT record of the message, or null if its sender doesnt support EDNS(0)
+    public DNSResourceRecord getOpt() {
+        for (DNSResourceRecord additional : this.additionals) {
+            if (additional.type == DNSMessage.OPT_TYPE) {
+                return additional;
+            }
+        }
+        return null;
+    }
+
+    // largest udp message the sender of this message said it can take, 512 without EDNS(0)
+    public int getUdpPayloadSize() {
+        DNSResourceRecord opt = this.getOpt();
+        if (opt == null) {
+            return DNSMessage.MIN_UDP_PAYLOAD_SIZE;
+        }
+        // sizes below 512 are treated as 512 (RFC 6891 6.2.5)
+        return Math.max(DNSMessage.MIN_UDP_PAYLOAD_SIZE, opt.classValue);
+    }
+
+    // bytes can be longer than the message (e.g. a whole receive buffer), only the message is read
     public DNSMessage(byte[] dnsMessageBytes) {
+        this.wireBytes = dnsMessageBytes;
         this.header = new DNSHeader(dnsMessageBytes);
 
         // QDCOUNT is the 5th and 6th bytes
@@ -100,143 +136,14 @@ public class DNSMessage {
         return hexString.toString();
     }
 
+    // a copy of the message in wire format, use DNSEncoder.encode directly to avoid the copy
     public byte[] toByteArray() {
-        // figure out how big the array should be
-        // check if its a query first beause thats the only time it matters
-        byte[] dnsMessage;
-        int length = 12; // header section is 12 bytes
-        for (DNSQuestion question : questions) {
-            length += question.getByteLength();
-        }
-        for (DNSResourceRecord answer : answers) {
-            length += answer.getByteLength();
-        }
-        for (DNSResourceRecord authority : authorities) {
-            length += authority.getByteLength();
-        }
-        for (DNSResourceRecord additional : additionals) {
-            length += additional.getByteLength();
-        }
-
-        dnsMessage = new byte[length];
-        // automatically intialises whole thing to 0 bits
-
-        int index = 0;
-
-        // Add header
-        dnsMessage[index++] = (byte) (header.id >> 8);
-        dnsMessage[index++] = (byte) (header.id);
-
-        // automatically sets z to all 000
-        short flags = (short) (
-                (header.qr ? 0x8000 : 0) |
-                (header.opcode & 0x7800) |
-                (header.aa ? 0x0400 : 0) |
-                (header.tc ? 0x0200 : 0) |
-                (header.rd ? 0x0100 : 0) |
-                (header.ra ? 0x0080 : 0) |
-                (0x0000) |
-                (header.rcode & 0x000F)
-        );
-        dnsMessage[index++] = (byte) (flags >> 8);
-        dnsMessage[index++] = (byte) (flags);
-
-        // qdcount
-        dnsMessage[index++] = (byte) (questions.size() >> 8);
-        dnsMessage[index++] = (byte) (questions.size());
-
-        //ancount
-        dnsMessage[index++] = (byte) (answers.size() >> 8);
-        dnsMessage[index++] = (byte) (answers.size());
-
-        //nscount
-        dnsMessage[index++] = (byte) (authorities.size() >> 8);
-        dnsMessage[index++] = (byte) (authorities.size());
-
-        //arcount
-        dnsMessage[index++] = (byte) (additionals.size() >> 8);
-        dnsMessage[index++] = (byte) (additionals.size());
-
-        // Add question (assume always one question)
-        for (DNSQuestion question : questions) {
-            index = putName(dnsMessage, index, question.qName);
-            dnsMessage[index++] = (byte) (question.qType >> 8);
-            dnsMessage[index++] = (byte) (question.qType);
-            dnsMessage[index++] = (byte) (question.qClass >> 8);
-            dnsMessage[index++] = (byte) (question.qClass);
-        }
-
-        // Add answer records
-        for (DNSResourceRecord record : answers) {
-            System.arraycopy(record.name, 0, dnsMessage, index, record.name.length);
-            index += record.name.length;
-            dnsMessage[index++] = (byte) (record.type >> 8);
-            dnsMessage[index++] = (byte) (record.type);
-            dnsMessage[index++] = (byte) (record.classValue >> 8);
-            dnsMessage[index++] = (byte) (record.classValue);
-            dnsMessage[index++] = (byte) (record.ttl >> 24);
-            dnsMessage[index++] = (byte) (record.ttl >> 16);
-            dnsMessage[index++] = (byte) (record.ttl >> 8);
-            dnsMessage[index++] = (byte) (record.ttl);
-            dnsMessage[index++] = (byte) (record.rdata.length >> 8);
-            dnsMessage[index++] = (byte) (record.rdata.length);
-            System.arraycopy(record.rdata, 0, dnsMessage, index, record.rdata.length);
-            index += record.rdata.length;
-        }
-
-        // Add authority records
-        for (DNSResourceRecord record : authorities) {
-            System.arraycopy(record.name, 0, dnsMessage, index, record.name.length);
-            index += record.name.length;
-            dnsMessage[index++] = (byte) (record.type >> 8);
-            dnsMessage[index++] = (byte) (record.type);
-            dnsMessage[index++] = (byte) (record.classValue >> 8);
-            dnsMessage[index++] = (byte) (record.classValue);
-            dnsMessage[index++] = (byte) (record.ttl >> 24);
-            dnsMessage[index++] = (byte) (record.ttl >> 16);
-            dnsMessage[index++] = (byte) (record.ttl >> 8);
-            dnsMessage[index++] = (byte) (record.ttl);
-            dnsMessage[index++] = (byte) (record.rdata.length >> 8);
-            dnsMessage[index++] = (byte) (record.rdata.length);
-            System.arraycopy(record.rdata, 0, dnsMessage, index, record.rdata.length);
-            index += record.rdata.length;
-        }
-
-        // Add additional records
-        for (DNSResourceRecord record : additionals) {
-            System.arraycopy(record.name, 0, dnsMessage, index, record.name.length);
-            index += record.name.length;
-            dnsMessage[index++] = (byte) (record.type >> 8);
-            dnsMessage[index++] = (byte) (record.type);
-            dnsMessage[index++] = (byte) (record.classValue >> 8);
-            dnsMessage[index++] = (byte) (record.classValue);
-            dnsMessage[index++] = (byte) (record.ttl >> 24);
-            dnsMessage[index++] = (byte) (record.ttl >> 16);
-            dnsMessage[index++] = (byte) (record.ttl >> 8);
-            dnsMessage[index++] = (byte) (record.ttl);
-            dnsMessage[index++] = (byte) (record.rdata.length >> 8);
-            dnsMessage[index++] = (byte) (record.rdata.length);
-            System.arraycopy(record.rdata, 0, dnsMessage, index, record.rdata.length);
-            index += record.rdata.length;
-        }
-
-        // assume wont get indicy out of bounds as i wont be touching editing any asnwer parts
+        ByteBuffer encoded = DNSEncoder.encode(this);
+        byte[] dnsMessage = new byte[encoded.remaining()];
+        encoded.get(dnsMessage);
         return dnsMessage;
     }
 
-    private int putName(byte[] dnsMessage, int index, String qName) {
-        String[] labels = qName.split("\\."); // splits name by .
-        for (String label : labels) {
-            int length = label.length();
-            dnsMessage[index++] = (byte) length;
-            for (char c : label.toCharArray()) {
-                dnsMessage[index++] = (byte) c;
-            }
-        }
-        dnsMessage[index++] = 0x00; // null label of the root
-        return index;
-    }
-
     public String extractDomainFromRData(byte[] rData) {
         int rDataIndex = 0;
 
@@ -272,29 +179,33 @@ public class DNSMessage {
 
     // assumes the string builder haas already been made
     public void parsePointerValueForDomainName(StringBuilder domainName, int dnsMessageIndex) {
-        byte[] dnsMessage = this.toByteArray();
-        while (true) {
-            if ((dnsMessage[dnsMessageIndex] & 0xC0) == 0xC0) {
-                // Name is compressed, this is an offset
-                // get the offset as an interger
-                int dnsMessageIndexNew = ((dnsMessage[dnsMessageIndex] & 0x3F) << 8) | (dnsMessage[dnsMessageIndex + 1] & 0xFF);
-                // go and find domain name
-                this.parsePointerValueForDomainName(domainName, dnsMessageIndexNew);
-                // now string is done being built
-                break;
-            } else if (dnsMessage[dnsMessageIndex] == 0x00) {
-                // end of the label its reading and string is done being built
-                break;
-            } else {
-                // part of the label
-                int labelLength = dnsMessage[dnsMessageIndex++];
-                // Extract the characters for this label
-                for (int i = 0; i < labelLength; i++) {
-                    domainName.append((char) dnsMessage[dnsMessageIndex++]);
-                }
-                domainName.append(".");
-                // go to next label if there is one
+        if (this.wireBytes != null) {
+            // the offsets were made for the bytes as they were received
+            domainName.append(this.decodeName(this.wireBytes, dnsMessageIndex, true));
+        } else {
+            // built in code, the only bytes there are come from serializing it
+            // which cant be remembered since the message can still change
+            domainName.append(this.decodeName(this.toByteArray(), dnsMessageIndex, false));
+        }
+    }
+
+    // the name starting at the index with a '.' after every label, pointers are followed
+    private String decodeName(byte[] dnsMessage, int dnsMessageIndex, boolean remember) {
+        if (remember && this.decodedNames == null) {
+            this.decodedNames = new HashMap<>();
+        }
+        if (remember) {
+            String decodedName = this.decodedNames.get(dnsMessageIndex);
+            if (decodedName != null) {
+                return decodedName;
             }
         }
+
+        String name = DNSName.read(dnsMessage, dnsMessageIndex);
+        String decodedName = name.isEmpty() ? name : name + ".";
+        if (remember) {
+            this.decodedNames.put(dnsMessageIndex, decodedName);
+        }
+        return decodedName;
     }
 }
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+
+// read only view of a dns message that works straight off the received bytes
+// building one only walks the message to find where each record starts, the fields
+// themselves are read when asked for and nothing is copied out of the buffer
+// useful when only the header, the question and a few records of a response are looked at
+
+public class DNSMessageView {
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
+    private final ByteBuffer buffer;
+    // index of the first record of each section in the offset arrays, plus the total at the end
+    private final int[] sectionStarts = new int[4];
+    // where each records owner name starts, and where its type field starts (after the name)
+    private final int[] nameOffsets;
+    private final int[] fixedOffsets;
+
+    public DNSMessageView(byte[] dnsMessageBytes) {
+        this(ByteBuffer.wrap(dnsMessageBytes));
+    }
+
+    // the view reads from the buffers position to its limit and never changes the buffer
+    public DNSMessageView(ByteBuffer dnsMessage) {
+        this.buffer = dnsMessage.slice();
+
+        int qdcount = this.readShort(4);
+        int ancount = this.readShort(6);
+        int nscount = this.readShort(8);
+        int arcount = this.readShort(10);
+
+        this.sectionStarts[ANSWER] = 0;
+        this.sectionStarts[AUTHORITY] = ancount;
+        this.sectionStarts[ADDITIONAL] = ancount + nscount;
+        this.sectionStarts[3] = ancount + nscount + arcount;
+        this.nameOffsets = new int[this.sectionStarts[3]];
+        this.fixedOffsets = new int[this.sectionStarts[3]];
+
+        int index = 12; // start after the header
+        for (int i = 0; i < qdcount; i++) {
+            index = this.skipName(index) + 4;
+        }
+        for (int i = 0; i < this.nameOffsets.length; i++) {
+            this.nameOffsets[i] = index;
+            index = this.skipName(index);
+            this.fixedOffsets[i] = index;
+            // type, class and ttl are 8 bytes then the rdlength
+            index += 10 + this.readShort(index + 8);
+        }
+        if (index > this.buffer.limit()) {
+            throw new IllegalArgumentException("DNS message is cut short");
+        }
+    }
+
+    public int getId() {
+        return this.readShort(0);
+    }
+
+    public boolean isResponse() {
+        return (this.buffer.get(2) & 0x80) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (this.buffer.get(2) & 0x02) != 0;
+    }
+
+    public int getRcode() {
+        return this.buffer.get(3) & 0x0F;
+    }
+
+    // assumes only 1 question
+    public String getQuestionName() {
+        return this.readName(12);
+    }
+
+    public int getQuestionType() {
+        return this.readShort(this.skipName(12));
+    }
+
+    public int getQuestionClass() {
+        return this.readShort(this.skipName(12) + 2);
+    }
+
+    // number of records in the section
+    public int getCount(int section) {
+        return this.sectionStarts[section + 1] - this.sectionStarts[section];
+    }
+
+    // owner name of the i'th record in the section, without the trailing dot
+    public String getName(int section, int i) {
+        return this.readName(this.nameOffsets[this.sectionStarts[section] + i]);
+    }
+
+    public int getType(int section, int i) {
+        return this.readShort(this.fixedOffsets[this.sectionStarts[section] + i]);
+    }
+
+    public int getRecordClass(int section, int i) {
+        return this.readShort(this.fixedOffsets[this.sectionStarts[section] + i] + 2);
+    }
+
+    public int getTtl(int section, int i) {
+        return this.buffer.getInt(this.fixedOffsets[this.sectionStarts[section] + i] + 4);
+    }
+
+    // the rdata of the record as a read only view over the message bytes
+    public ByteBuffer getRdata(int section, int i) {
+        int rdataOffset = this.rdataOffset(section, i);
+        int rdlength = this.readShort(rdataOffset - 2);
+        ByteBuffer rdata = this.buffer.duplicate();
+        rdata.position(rdataOffset).limit(rdataOffset + rdlength);
+        return rdata.slice().asReadOnlyBuffer();
+    }
+
+    // the name at the start of the rdata (ns, cname, ptr) with compression followed through the message
+    public String getRdataName(int section, int i) {
+        return this.readName(this.rdataOffset(section, i));
+    }
+
+    // the address of an A record as dotted decimal
+    public String getRdataAddress(int section, int i) {
+        int rdataOffset = this.rdataOffset(section, i);
+        if (this.readShort(rdataOffset - 2) != 4) {
+            throw new IllegalArgumentException("A record rdata isnt 4 bytes");
+        }
+        return (this.buffer.get(rdataOffset) & 0xFF) + "." + (this.buffer.get(rdataOffset + 1) & 0xFF) + "."
+            + (this.buffer.get(rdataOffset + 2) & 0xFF) + "." + (this.buffer.get(rdataOffset + 3) & 0xFF);
+    }
+
+    private int rdataOffset(int section, int i) {
+        return this.fixedOffsets[this.sectionStarts[section] + i] + 10;
+    }
+
+    private int readShort(int index) {
+        return ((this.buffer.get(index) & 0xFF) << 8) | (this.buffer.get(index + 1) & 0xFF);
+    }
+
+    // index just after the name starting at index, a pointer ends the name
+    private int skipName(int index) {
+        return DNSName.skip(this.buffer, index);
+    }
+
+    // decodes the name starting at index, following compression pointers
+    private String readName(int index) {
+        return DNSName.read(this.buffer, index);
+    }
+}
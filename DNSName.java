@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+
+// reading and skipping names in wire format (RFC 1035 3.1), following compression pointers (RFC 1035 4.1.4)
+// every class that reads names out of a message goes through here so they all stop the same way
+// on a pointer loop or a name that runs off the end, with an IllegalArgumentException
+
+public class DNSName {
+    // most compression pointers followed for one name before it is treated as a loop
+    public static final int MAX_POINTER_HOPS = 64;
+
+    private DNSName() {
+    }
+
+    // the name starting at index without the trailing dot, the root is ""
+    public static String read(byte[] bytes, int index) {
+        return DNSName.read(ByteBuffer.wrap(bytes), index);
+    }
+
+    // the name starting at index (an absolute index into the buffer) without the trailing dot
+    public static String read(ByteBuffer buffer, int index) {
+        StringBuilder domainName = new StringBuilder();
+        int hops = 0;
+        while (true) {
+            int labelLength = DNSName.get(buffer, index);
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (++hops > DNSName.MAX_POINTER_HOPS) {
+                    throw new IllegalArgumentException("Compression pointer loop in DNS message");
+                }
+                index = ((labelLength & 0x3F) << 8) | DNSName.get(buffer, index + 1);
+            } else if (labelLength == 0) {
+                return domainName.toString();
+            } else {
+                DNSName.get(buffer, index + labelLength);
+                if (domainName.length() > 0) {
+                    domainName.append('.');
+                }
+                for (int i = 1; i <= labelLength; i++) {
+                    domainName.append((char) (buffer.get(index + i) & 0xFF));
+                }
+                index += labelLength + 1;
+            }
+        }
+    }
+
+    // index just after the name starting at index, a pointer ends the name and isnt followed
+    public static int skip(byte[] bytes, int index) {
+        return DNSName.skip(ByteBuffer.wrap(bytes), index);
+    }
+
+    public static int skip(ByteBuffer buffer, int index) {
+        while (true) {
+            int labelLength = DNSName.get(buffer, index);
+            if ((labelLength & 0xC0) == 0xC0) {
+                DNSName.get(buffer, index + 1);
+                return index + 2;
+            } else if (labelLength == 0) {
+                return index + 1;
+            }
+            index += labelLength + 1;
+        }
+    }
+
+    // the name in wire format without compression, the name has no trailing dot
+    public static byte[] toWire(String name) {
+        byte[] bytes = new byte[name.isEmpty() ? 1 : name.length() + 2];
+        int index = 0;
+        int start = 0;
+        while (start < name.length()) {
+            int dotIndex = name.indexOf('.', start);
+            int end = dotIndex < 0 ? name.length() : dotIndex;
+            bytes[index++] = (byte) (end - start);
+            for (int i = start; i < end; i++) {
+                bytes[index++] = (byte) name.charAt(i);
+            }
+            start = end + 1;
+        }
+        bytes[index] = 0x00; // null label of the root
+        return bytes;
+    }
+
+    private static int get(ByteBuffer buffer, int index) {
+        if (index < 0 || index >= buffer.limit()) {
+            throw new IllegalArgumentException("DNS name runs past the end of the message");
+        }
+        return buffer.get(index) & 0xFF;
+    }
+}
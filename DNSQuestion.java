@@ -13,22 +13,19 @@ public class DNSQuestion {
         // because there is no prior data in the message that it could point to.
 
         StringBuilder stringBuilder = new StringBuilder();
-        // assumes it cant be a blank question thus the first byte of the question
-        // section is always a label length due to check before
-        while (true) {
+        // a zero length straight away is the root name, which is left as an empty string
+        while (dnsMessageBytes[index] != 0x00) {
+            if (stringBuilder.length() > 0) {
+                // its the next label
+                stringBuilder.append(".");
+            }
             int labelLength = dnsMessageBytes[index++];
             // Extract the characters for this label
             for (int i = 0; i < labelLength; i++) {
                 stringBuilder.append((char) dnsMessageBytes[index++]);
             }
-            if (dnsMessageBytes[index] == 0x00) {
-                index++;
-                break;
-            } else {
-                // its the next label lenght
-                stringBuilder.append(".");
-            }
         }
+        index++; // skip the null label of the root
 
         qName = stringBuilder.toString();
 
@@ -63,11 +60,19 @@ public class DNSQuestion {
         this.qClass = qClass;
     }
 
+    // copy of an existing question, doesnt touch the name like the string constructor does for ptr
+    public DNSQuestion(DNSQuestion question) {
+        this.qName = question.qName;
+        this.qType = question.qType;
+        this.qClass = question.qClass;
+    }
+
     public int getByteLength() {
-        int qNameLength = 0;
-        String[] labels = qName.split("\\."); //  splits name by .
-        for (String label : labels) {
-            qNameLength = qNameLength + 1 + label.length();
+        // every label is its length byte plus its characters, so the dots turn into length bytes
+        // and only the first label needs one extra, no need to split the name up
+        int qNameLength = qName.length();
+        if (!qName.isEmpty() && !qName.endsWith(".")) {
+            qNameLength++;
         }
         if (!qName.endsWith(".")) {
             qNameLength++; // null label of the root
@@ -1,3 +1,5 @@
+import java.io.ByteArrayOutputStream;
+
 public class DNSResourceRecord {
     public byte[] name;
     public int type;
@@ -5,7 +7,17 @@ public class DNSResourceRecord {
     public int ttl;
     public byte[] rdata;
 
+    // the message the record was parsed from and where its name and rdata start in it
+    // compression pointers in name and rdata point into these bytes, null for records built in code
+    // private so only the record decides how long it holds on to the message, see detached
+    private byte[] messageBytes;
+    private int nameOffset;
+    private int rdataOffset;
+
     public DNSResourceRecord(int index, byte[] dnsMessageBytes) {
+        this.messageBytes = dnsMessageBytes;
+        this.nameOffset = index;
+
         // get the name
         if ((dnsMessageBytes[index] & 0xC0) == 0xC0) {
             // Name is compressed, this is an offset
@@ -55,11 +67,146 @@ public class DNSResourceRecord {
         index += 2;
 
         // copy the rdata bytes
+        rdataOffset = index;
         rdata = new byte[rdlength];
         System.arraycopy(dnsMessageBytes, index, rdata, 0, rdlength);
         index += rdlength;
     }
 
+    // a record built in code, the name and rdata must not hold compression pointers
+    public DNSResourceRecord(byte[] name, int type, int classValue, int ttl, byte[] rdata) {
+        this.name = name;
+        this.type = type;
+        this.classValue = classValue;
+        this.ttl = ttl;
+        this.rdata = rdata;
+    }
+
+    // the EDNS(0) OPT pseudo record (RFC 6891) advertising the largest udp message we can take
+    // the root as its name, the payload size in place of the class, extended rcode, version 0
+    // and no DO bit in place of the ttl, and no options
+    public static DNSResourceRecord opt(int udpPayloadSize) {
+        return new DNSResourceRecord(new byte[] { 0x00 }, DNSMessage.OPT_TYPE, udpPayloadSize, 0, new byte[0]);
+    }
+
+    // copy of an existing record with a different ttl, the name and rdata arrays are shared
+    public DNSResourceRecord(DNSResourceRecord record, int ttl) {
+        this.name = record.name;
+        this.type = record.type;
+        this.classValue = record.classValue;
+        this.ttl = ttl;
+        this.rdata = record.rdata;
+        this.messageBytes = record.messageBytes;
+        this.nameOffset = record.nameOffset;
+        this.rdataOffset = record.rdataOffset;
+    }
+
+    // copy of the record with its names decompressed into its own name and rdata, so it no longer
+    // holds on to the message it came from (e.g. while it sits in the cache)
+    // rdata names that cant be decoded are left as they were, like DNSEncoder does
+    public DNSResourceRecord detached() {
+        if (this.messageBytes == null) {
+            return this;
+        }
+        String ownerName = this.getOwnerName();
+        byte[] detachedName = ownerName != null ? DNSName.toWire(ownerName) : this.name;
+
+        byte[] detachedRdata = this.rdata;
+        RdataNames rdataNames = this.getRdataNames();
+        if (rdataNames != null) {
+            ByteArrayOutputStream rdataBytes = new ByteArrayOutputStream(this.rdata.length);
+            rdataBytes.write(this.rdata, 0, rdataNames.start);
+            for (String name : rdataNames.names) {
+                rdataBytes.writeBytes(DNSName.toWire(name));
+            }
+            rdataBytes.write(this.rdata, rdataNames.end, this.rdata.length - rdataNames.end);
+            detachedRdata = rdataBytes.toByteArray();
+        }
+        return new DNSResourceRecord(detachedName, this.type, this.classValue, this.ttl, detachedRdata);
+    }
+
+    // the owner name without the trailing dot, or null if it cant be decoded
+    // (e.g. it points into a message the record doesnt have)
+    public String getOwnerName() {
+        try {
+            if (this.messageBytes != null) {
+                return DNSName.read(this.messageBytes, this.nameOffset);
+            }
+            return DNSName.read(this.name, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // the name starting at the index in the rdata (e.g. 2 for the exchange of a mx record)
+    // without the trailing dot, or null if it cant be decoded
+    public String getRdataName(int rdataIndex) {
+        try {
+            return this.readRdataName(rdataIndex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // the names in the rdata with the bytes before and after them, or null if the type has no names
+    // or they cant be decoded, so the rdata is copied as is
+    // DNSEncoder and detached both go by this so they always rewrite the same names
+    public RdataNames getRdataNames() {
+        int[] layout = DNSResourceRecord.rdataNameLayout(this.type);
+        if (layout == null) {
+            return null;
+        }
+        try {
+            String[] names = new String[layout[1]];
+            int index = layout[0];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = this.readRdataName(index);
+                // only the bytes of the rdata itself count, a name can only point out of them
+                index = DNSName.skip(this.rdata, index);
+            }
+            return new RdataNames(layout[0], names, index);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // the table of the types with names in their rdata (RFC 1035 3.3): how many fixed bytes come before
+    // the first name and how many names follow, anything after the names is fixed too, null for other types
+    private static int[] rdataNameLayout(int type) {
+        switch (type) {
+            case 2: // ns
+            case 5: // cname
+            case 12: // ptr
+                return new int[] { 0, 1 };
+            case 15: // mx, 2 byte preference then the exchange
+                return new int[] { 2, 1 };
+            case 6: // soa, two names then 20 bytes of serial, refresh, retry, expire and minimum
+                return new int[] { 0, 2 };
+            default:
+                return null;
+        }
+    }
+
+    private String readRdataName(int rdataIndex) {
+        if (this.messageBytes != null) {
+            return DNSName.read(this.messageBytes, this.rdataOffset + rdataIndex);
+        }
+        return DNSName.read(this.rdata, rdataIndex);
+    }
+
+    // the names in the rdata of a record, start is where the first one begins and end is just after the last
+    public static class RdataNames {
+        public final int start;
+        public final String[] names;
+        public final int end;
+
+        private RdataNames(int start, String[] names, int end) {
+            this.start = start;
+            this.names = names;
+            this.end = end;
+        }
+    }
+
     public int getByteLength() {
         return name.length + 2 + 2 + 4 + 2 + rdata.length;
     }
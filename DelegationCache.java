@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// remembers the nameserver addresses of zone cuts seen in referrals, keyed by zone name
+// so a new query can start at the closest known nameservers instead of the roots
+// split into stripes with their own lock like DNSCache, and each stripe evicts its
+// least recently used zone when it is full so new delegations always get in
+
+public class DelegationCache {
+    private final Stripe[] stripes;
+
+    public DelegationCache(int maxZones) {
+        this(maxZones, DelegationCache.defaultStripes(maxZones));
+    }
+
+    public DelegationCache(int maxZones, int stripeCount) {
+        this.stripes = new Stripe[stripeCount];
+        int stripeCapacity = Math.max(1, maxZones / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    // stores the nameserver ips for a zone, the zone name should not have the trailing dot
+    public void put(String zone, List<String> serverIPs, int ttl) {
+        if (zone.isEmpty() || serverIPs.isEmpty() || ttl <= 0) {
+            // the root zone always comes from the root hints
+            return;
+        }
+
+        zone = zone.toLowerCase();
+        long expiresAt = System.currentTimeMillis() + Math.min(ttl, DNSCache.MAX_TTL) * 1000L;
+        Delegation delegation = new Delegation(serverIPs, expiresAt);
+        Stripe stripe = this.stripeFor(zone);
+        synchronized (stripe) {
+            stripe.put(zone, delegation);
+        }
+    }
+
+    // the deepest cached zone that contains the name, or null if there is none
+    public String closestZone(String qName) {
+        String zone = qName.toLowerCase();
+        while (!zone.isEmpty()) {
+            if (!this.getServers(zone).isEmpty()) {
+                return zone;
+            }
+
+            // go up one label
+            int dotIndex = zone.indexOf('.');
+            zone = dotIndex < 0 ? "" : zone.substring(dotIndex + 1);
+        }
+        return null;
+    }
+
+    // ips of the nameservers cached for the zone, or an empty list if it isnt cached or has expired
+    public List<String> getServers(String zone) {
+        zone = zone.toLowerCase();
+        Stripe stripe = this.stripeFor(zone);
+        synchronized (stripe) {
+            Delegation delegation = stripe.zones.get(zone);
+            if (delegation == null) {
+                return Collections.emptyList();
+            }
+            if (System.currentTimeMillis() >= delegation.expiresAt) {
+                stripe.zones.remove(zone);
+                return Collections.emptyList();
+            }
+            return delegation.serverIPs;
+        }
+    }
+
+    // true if the zone is the name itself or one of its parents, referrals for any other
+    // zone have nothing to do with the query and shouldnt be cached
+    public static boolean isZoneOf(String zone, String qName) {
+        zone = zone.toLowerCase();
+        qName = qName.toLowerCase();
+        return zone.isEmpty() || qName.equals(zone) || qName.endsWith("." + zone);
+    }
+
+    // a stripe per 64 zones up to the same number DNSCache uses, a tiny cache gets just the one
+    private static int defaultStripes(int maxZones) {
+        return Math.max(1, Math.min(Resolver.CACHE_STRIPES, maxZones / 64));
+    }
+
+    private Stripe stripeFor(String zone) {
+        return this.stripes[(zone.hashCode() & 0x7FFFFFFF) % this.stripes.length];
+    }
+
+    private static class Delegation {
+        private final List<String> serverIPs;
+        private final long expiresAt;
+
+        private Delegation(List<String> serverIPs, long expiresAt) {
+            this.serverIPs = Collections.unmodifiableList(new ArrayList<>(serverIPs));
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // only used while holding its lock
+    private static class Stripe {
+        private final int capacity;
+        // access order so the first zone is the least recently used one
+        private final LinkedHashMap<String, Delegation> zones = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private void put(String zone, Delegation delegation) {
+            this.zones.put(zone, delegation);
+            if (this.zones.size() > this.capacity) {
+                Iterator<String> eldest = this.zones.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
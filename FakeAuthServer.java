@@ -0,0 +1,671 @@
+import java.io.*;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// a whole dns hierarchy (root, tlds and leaf zones) served from zone files on loopback addresses
+// so the resolver can be run and benchmarked without a network, pointed at it with
+// --root-hints= and --upstream-port=
+// every line of the hierarchy file puts a zone on a server, a server is one address and can have
+// several zones, and can be made slow (delay-ms=), lossy (loss=) or stingy with glue (glueless)
+// it only does what the resolver needs: referrals with glue, answers, cnames, wildcards,
+// nxdomain and nodata with the soa, EDNS(0) sizes with TC, and tcp
+
+public class FakeAuthServer {
+    public static final int DEFAULT_PORT = 10053;
+    // the loss is drawn from this so a run drops the same queries as the last one given the same order
+    public static final long DEFAULT_SEED = 1;
+    public static final int EDNS_PAYLOAD_SIZE = 1232;
+    // most cnames followed inside this servers own zones
+    public static final int MAX_CNAME_CHAIN = 8;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_MX = 15;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_ANY = 255;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    // sends the delayed responses, one thread is plenty since it only sends
+    private static final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String address;
+    private final List<Zone> zones = new ArrayList<>();
+    private int delayMillis;
+    private int lossPercent;
+    private boolean glueless;
+    private Random lossRandom;
+    private DatagramChannel udpChannel;
+    private ServerSocket tcpSocket;
+
+    private FakeAuthServer(String address) {
+        this.address = address;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            FakeAuthServer.usageMessage();
+            System.exit(1);
+        }
+
+        int port = FakeAuthServer.DEFAULT_PORT;
+        long seed = FakeAuthServer.DEFAULT_SEED;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else {
+                    System.err.println("Error: unknown option " + arg);
+                    FakeAuthServer.usageMessage();
+                    System.exit(1);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Error: invalid value in " + arg);
+                FakeAuthServer.usageMessage();
+                System.exit(1);
+            }
+        }
+        if (port < 1 || port > 65535) {
+            System.err.println("Error: invalid port " + port);
+            System.exit(1);
+        }
+
+        List<FakeAuthServer> servers;
+        try {
+            servers = FakeAuthServer.loadHierarchy(args[0]);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        for (int i = 0; i < servers.size(); i++) {
+            FakeAuthServer server = servers.get(i);
+            // each server gets its own stream of losses so one servers traffic doesnt change anothers
+            server.lossRandom = new Random(seed + i);
+            server.start(port, false);
+            List<String> origins = new ArrayList<>();
+            for (Zone zone : server.zones) {
+                origins.add(zone.origin.isEmpty() ? "." : zone.origin);
+            }
+            System.out.println("Serving " + String.join(", ", origins) + " on " + server.address + " port " + port
+                + " (delay " + server.delayMillis + "ms, loss " + server.lossPercent + "%" + (server.glueless ? ", glueless" : "") + ")");
+        }
+    }
+
+    public static void usageMessage() {
+        System.err.println("Usage: java FakeAuthServer hierarchy_file [--port=n] [--seed=n]");
+        System.err.println("Each line of the hierarchy file: address zone_file [delay-ms=n] [loss=percent] [glueless]");
+    }
+
+    // reads the hierarchy file, zone files are found relative to it
+    private static List<FakeAuthServer> loadHierarchy(String fileName) throws IOException {
+        Map<String, FakeAuthServer> servers = new LinkedHashMap<>();
+        File hierarchyFile = new File(fileName);
+        try (BufferedReader reader = new BufferedReader(new FileReader(hierarchyFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int commentIndex = line.indexOf('#');
+                if (commentIndex >= 0) {
+                    line = line.substring(0, commentIndex);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    throw new IOException(fileName + " line " + lineNumber + ": expected an address and a zone file");
+                }
+                FakeAuthServer server = servers.computeIfAbsent(fields[0], FakeAuthServer::new);
+                File zoneFile = new File(fields[1]);
+                if (!zoneFile.isAbsolute()) {
+                    zoneFile = new File(hierarchyFile.getAbsoluteFile().getParentFile(), fields[1]);
+                }
+                server.zones.add(Zone.load(zoneFile));
+
+                // the options are for the whole server whichever of its lines they are on
+                for (int i = 2; i < fields.length; i++) {
+                    String option = fields[i];
+                    try {
+                        if (option.startsWith("delay-ms=")) {
+                            server.delayMillis = Integer.parseInt(option.substring("delay-ms=".length()));
+                        } else if (option.startsWith("loss=")) {
+                            server.lossPercent = Integer.parseInt(option.substring("loss=".length()));
+                        } else if (option.equals("glueless")) {
+                            server.glueless = true;
+                        } else {
+                            throw new IOException(fileName + " line " + lineNumber + ": unknown option " + option);
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new IOException(fileName + " line " + lineNumber + ": invalid value in " + option);
+                    }
+                }
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IOException(fileName + " has no servers in it");
+        }
+        return new ArrayList<>(servers.values());
+    }
+
+    // one server on the address with a single zone given as the text of a zone file, for the benchmarks
+    // port 0 lets the os pick a free one, getPort says which, and its threads dont keep the jvm alive
+    static FakeAuthServer serveZone(String address, int port, String zoneText) throws IOException {
+        FakeAuthServer server = new FakeAuthServer(address);
+        server.zones.add(Zone.load(new BufferedReader(new StringReader(zoneText)), "zone"));
+        server.start(port, true);
+        return server;
+    }
+
+    int getPort() {
+        return this.tcpSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+        this.udpChannel.close();
+        this.tcpSocket.close();
+    }
+
+    // tcp is on the same port udp got, which matters when the os picked it
+    private void start(int port, boolean daemon) throws IOException {
+        this.udpChannel = DatagramChannel.open();
+        this.udpChannel.bind(new InetSocketAddress(this.address, port));
+        int boundPort = ((InetSocketAddress) this.udpChannel.getLocalAddress()).getPort();
+        Thread udpThread = new Thread(() -> this.serveUdp(this.udpChannel), "fake-udp-" + this.address);
+        udpThread.setDaemon(daemon);
+        udpThread.start();
+
+        this.tcpSocket = new ServerSocket();
+        this.tcpSocket.bind(new InetSocketAddress(this.address, boundPort));
+        Thread tcpThread = new Thread(() -> this.serveTcp(this.tcpSocket), "fake-tcp-" + this.address);
+        tcpThread.setDaemon(daemon);
+        tcpThread.start();
+    }
+
+    private void serveUdp(DatagramChannel channel) {
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(DNSEncoder.MAX_MESSAGE_SIZE);
+        while (true) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress client = channel.receive(receiveBuffer);
+                receiveBuffer.flip();
+                byte[] dnsQueryBytes = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(dnsQueryBytes);
+
+                if (this.lossPercent > 0 && this.lossRandom.nextInt(100) < this.lossPercent) {
+                    // lost on the way, the resolver has to time out and try again
+                    continue;
+                }
+                ByteBuffer encoded = this.respond(dnsQueryBytes, false);
+                if (encoded == null) {
+                    continue;
+                }
+                // the encoder buffer is reused by the next query so the response is copied out before waiting
+                ByteBuffer dnsResponse = ByteBuffer.allocate(encoded.remaining());
+                dnsResponse.put(encoded);
+                dnsResponse.flip();
+
+                if (this.delayMillis > 0) {
+                    FakeAuthServer.delayer.schedule(() -> FakeAuthServer.sendQuietly(channel, dnsResponse, client), this.delayMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    FakeAuthServer.sendQuietly(channel, dnsResponse, client);
+                }
+            } catch (ClosedChannelException e) {
+                // closed by close()
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void sendQuietly(DatagramChannel channel, ByteBuffer dnsResponse, SocketAddress client) {
+        try {
+            channel.send(dnsResponse, client);
+        } catch (IOException e) {
+            // the resolver will time out like it would on a real lost response
+        }
+    }
+
+    // a thread per connection, answered in order, there are only ever a few connections from one resolver
+    private void serveTcp(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> this.serveTcpConnection(socket), "fake-tcp-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    // closed by close()
+                    return;
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serveTcpConnection(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int length = in.readUnsignedShort();
+                byte[] dnsQueryBytes = new byte[length];
+                in.readFully(dnsQueryBytes);
+
+                // tcp doesnt lose anything but is just as slow
+                if (this.delayMillis > 0) {
+                    Thread.sleep(this.delayMillis);
+                }
+                ByteBuffer dnsResponse = this.respond(dnsQueryBytes, true);
+                if (dnsResponse == null) {
+                    continue;
+                }
+                out.writeShort(dnsResponse.remaining());
+                out.write(dnsResponse.array(), 0, dnsResponse.remaining());
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // the resolver closed the connection
+        } catch (IOException | InterruptedException e) {
+            // dropped like a real server would
+        }
+    }
+
+    // the encoded response to the query, in this threads encoder buffer, or null to not answer it
+    private ByteBuffer respond(byte[] dnsQueryBytes, boolean overTcp) {
+        DNSMessage dnsQuery;
+        try {
+            dnsQuery = new DNSMessage(dnsQueryBytes);
+        } catch (RuntimeException e) {
+            // not a dns message
+            return null;
+        }
+        if (dnsQuery.header.qr || dnsQuery.questions.size() != 1) {
+            return null;
+        }
+
+        DNSQuestion question = dnsQuery.questions.get(0);
+        DNSMessage dnsResponse = new DNSMessage(new DNSHeader(dnsQuery.header.id, true, 0, false, false, dnsQuery.header.rd, false, 0));
+        dnsResponse.addQuestion(new DNSQuestion(question));
+        this.lookup(question.qName.toLowerCase(Locale.ROOT), question.qType, dnsResponse);
+
+        // sized like a real server, to what the query advertised or 512 without EDNS(0)
+        DNSResourceRecord opt = dnsQuery.getOpt() != null ? DNSResourceRecord.opt(FakeAuthServer.EDNS_PAYLOAD_SIZE) : null;
+        int maxSize = overTcp ? DNSEncoder.MAX_MESSAGE_SIZE : Math.min(dnsQuery.getUdpPayloadSize(), FakeAuthServer.EDNS_PAYLOAD_SIZE);
+        return DNSEncoder.encode(dnsResponse, opt, maxSize);
+    }
+
+    // fills in the response for the name from the closest zone this server has
+    private void lookup(String name, int type, DNSMessage dnsResponse) {
+        for (int hops = 0; hops <= FakeAuthServer.MAX_CNAME_CHAIN; hops++) {
+            Zone zone = this.findZone(name);
+            if (zone == null) {
+                // only the first name can be outside our zones, a cname out of them is left for the resolver
+                if (hops == 0) {
+                    dnsResponse.header.rcode = FakeAuthServer.RCODE_REFUSED;
+                }
+                return;
+            }
+
+            String cut = zone.findCut(name);
+            if (cut != null) {
+                // a referral, the answer is a zone below this one
+                if (hops == 0) {
+                    List<DNSResourceRecord> nsRecords = zone.get(cut, FakeAuthServer.TYPE_NS);
+                    dnsResponse.authorities.addAll(nsRecords);
+                    this.addGlue(cut, nsRecords, dnsResponse);
+                }
+                return;
+            }
+
+            dnsResponse.header.aa = true;
+            List<DNSResourceRecord> records = zone.find(name);
+            if (records == null) {
+                if (hops == 0) {
+                    // a name with nothing of its own but names below it is nodata, not nxdomain
+                    dnsResponse.header.rcode = zone.names.contains(name) ? 0 : FakeAuthServer.RCODE_NXDOMAIN;
+                }
+                dnsResponse.authorities.addAll(zone.get(zone.origin, FakeAuthServer.TYPE_SOA));
+                return;
+            }
+
+            List<DNSResourceRecord> matching = new ArrayList<>();
+            DNSResourceRecord cname = null;
+            for (DNSResourceRecord record : records) {
+                if (record.type == type || type == FakeAuthServer.TYPE_ANY) {
+                    matching.add(FakeAuthServer.withOwner(record, name));
+                } else if (record.type == FakeAuthServer.TYPE_CNAME) {
+                    cname = FakeAuthServer.withOwner(record, name);
+                }
+            }
+            if (!matching.isEmpty()) {
+                dnsResponse.answers.addAll(matching);
+                if (type == FakeAuthServer.TYPE_NS || type == FakeAuthServer.TYPE_MX) {
+                    // the addresses of the targets, priming needs them for the root servers
+                    for (DNSResourceRecord record : matching) {
+                        int nameIndex = record.type == FakeAuthServer.TYPE_MX ? 2 : 0;
+                        this.addAddresses(record.getRdataName(nameIndex), dnsResponse);
+                    }
+                }
+                return;
+            }
+            if (cname == null) {
+                // nodata, the name is there but not with this type
+                dnsResponse.authorities.addAll(zone.get(zone.origin, FakeAuthServer.TYPE_SOA));
+                return;
+            }
+            dnsResponse.answers.add(cname);
+            name = cname.getRdataName(0).toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // glue inside the delegated zone is always sent since the servers cant be found without it,
+    // addresses of nameservers elsewhere are only sent when this server isnt glueless
+    private void addGlue(String cut, List<DNSResourceRecord> nsRecords, DNSMessage dnsResponse) {
+        for (DNSResourceRecord nsRecord : nsRecords) {
+            String nsName = nsRecord.getRdataName(0).toLowerCase(Locale.ROOT);
+            if (Zone.isUnder(nsName, cut)) {
+                Zone zone = this.findZone(nsName);
+                dnsResponse.additionals.addAll(zone.get(nsName, FakeAuthServer.TYPE_A));
+                dnsResponse.additionals.addAll(zone.get(nsName, FakeAuthServer.TYPE_AAAA));
+            } else if (!this.glueless) {
+                this.addAddresses(nsName, dnsResponse);
+            }
+        }
+    }
+
+    // the a and aaaa records this server has for the name in any of its zones, glue included
+    private void addAddresses(String name, DNSMessage dnsResponse) {
+        name = name.toLowerCase(Locale.ROOT);
+        Zone zone = this.findZone(name);
+        if (zone != null) {
+            dnsResponse.additionals.addAll(zone.get(name, FakeAuthServer.TYPE_A));
+            dnsResponse.additionals.addAll(zone.get(name, FakeAuthServer.TYPE_AAAA));
+        }
+    }
+
+    // the zone with the longest origin the name is in
+    private Zone findZone(String name) {
+        Zone closest = null;
+        for (Zone zone : this.zones) {
+            if (Zone.isUnder(name, zone.origin) && (closest == null || zone.origin.length() > closest.origin.length())) {
+                closest = zone;
+            }
+        }
+        return closest;
+    }
+
+    // a record from a wildcard gets the name that was asked for as its owner
+    private static DNSResourceRecord withOwner(DNSResourceRecord record, String name) {
+        if (!record.getOwnerName().startsWith("*")) {
+            return record;
+        }
+        return new DNSResourceRecord(Zone.toWireName(name), record.type, record.classValue, record.ttl, record.rdata);
+    }
+
+    // the records of one zone file, names are lower case without the trailing dot and the root is ""
+    private static class Zone {
+        private String origin;
+        private final Map<String, List<DNSResourceRecord>> records = new HashMap<>();
+        // every name with records and every name above one inside the zone (empty non terminals)
+        private final Set<String> names = new HashSet<>();
+
+        // reads a zone file in master file format (RFC 1035 5) with $ORIGIN and $TTL, one record per line
+        // and the types A, AAAA, NS, CNAME, PTR, MX and SOA, the zone is wherever its SOA record is
+        private static Zone load(File file) throws IOException {
+            return Zone.load(new BufferedReader(new FileReader(file)), file.getName());
+        }
+
+        // fileName is only for the error messages
+        private static Zone load(BufferedReader zoneReader, String fileName) throws IOException {
+            Zone zone = new Zone();
+            String origin = "";
+            int defaultTtl = 3600;
+            String owner = null;
+            try (BufferedReader reader = zoneReader) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    String where = fileName + " line " + lineNumber;
+                    int commentIndex = line.indexOf(';');
+                    if (commentIndex >= 0) {
+                        line = line.substring(0, commentIndex);
+                    }
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    // a line starting with whitespace is for the same owner as the line before
+                    boolean sameOwner = Character.isWhitespace(line.charAt(0));
+                    String[] fields = line.trim().split("\\s+");
+
+                    try {
+                        if (fields[0].equals("$ORIGIN")) {
+                            origin = Zone.absoluteName(fields[1], origin);
+                            continue;
+                        }
+                        if (fields[0].equals("$TTL")) {
+                            defaultTtl = Integer.parseInt(fields[1]);
+                            continue;
+                        }
+
+                        int index = 0;
+                        if (!sameOwner) {
+                            owner = Zone.absoluteName(fields[index++], origin);
+                        }
+                        if (owner == null) {
+                            throw new IOException(where + ": no owner name");
+                        }
+                        int ttl = defaultTtl;
+                        // the ttl and class can come in either order and both can be left out
+                        for (int i = 0; i < 2 && index < fields.length; i++) {
+                            if (fields[index].matches("\\d+")) {
+                                ttl = Integer.parseInt(fields[index++]);
+                            } else if (fields[index].equalsIgnoreCase("IN")) {
+                                index++;
+                            }
+                        }
+                        if (index >= fields.length) {
+                            throw new IOException(where + ": no type");
+                        }
+                        String type = fields[index++].toUpperCase(Locale.ROOT);
+                        String[] rdataFields = new String[fields.length - index];
+                        System.arraycopy(fields, index, rdataFields, 0, rdataFields.length);
+                        zone.add(owner, Zone.typeValue(type, where), ttl, Zone.toRdata(type, rdataFields, origin, where));
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        throw new IOException(where + ": cant parse " + line.trim());
+                    }
+                }
+            }
+
+            for (String name : zone.records.keySet()) {
+                for (DNSResourceRecord record : zone.records.get(name)) {
+                    if (record.type == FakeAuthServer.TYPE_SOA) {
+                        zone.origin = name;
+                    }
+                }
+            }
+            if (zone.origin == null) {
+                throw new IOException(fileName + " has no SOA record");
+            }
+            // the names above each owner, up to the top of the zone, exist even without records of their own
+            for (String name : zone.records.keySet()) {
+                while (!name.equals(zone.origin) && Zone.isUnder(name, zone.origin)) {
+                    zone.names.add(name);
+                    name = Zone.parent(name);
+                }
+            }
+            zone.names.add(zone.origin);
+            return zone;
+        }
+
+        private void add(String owner, int type, int ttl, byte[] rdata) {
+            DNSResourceRecord record = new DNSResourceRecord(Zone.toWireName(owner), type, 1, ttl, rdata);
+            this.records.computeIfAbsent(owner, name -> new ArrayList<>()).add(record);
+        }
+
+        private List<DNSResourceRecord> get(String name, int type) {
+            List<DNSResourceRecord> ofType = new ArrayList<>();
+            List<DNSResourceRecord> atName = this.records.get(name);
+            if (atName != null) {
+                for (DNSResourceRecord record : atName) {
+                    if (record.type == type) {
+                        ofType.add(record);
+                    }
+                }
+            }
+            return ofType;
+        }
+
+        // the highest delegation between the top of the zone and the name, or null if the name is in this zone
+        private String findCut(String name) {
+            String cut = null;
+            for (String above = name; !above.equals(this.origin); above = Zone.parent(above)) {
+                if (!this.get(above, FakeAuthServer.TYPE_NS).isEmpty()) {
+                    cut = above;
+                }
+            }
+            return cut;
+        }
+
+        // the records at the name, or at the wildcard covering it when the name isnt there (RFC 4592)
+        private List<DNSResourceRecord> find(String name) {
+            List<DNSResourceRecord> atName = this.records.get(name);
+            if (atName != null || this.names.contains(name)) {
+                return atName;
+            }
+            // the wildcard hangs off the closest name that does exist
+            String encloser = Zone.parent(name);
+            while (!this.names.contains(encloser)) {
+                encloser = Zone.parent(encloser);
+            }
+            return this.records.get(encloser.isEmpty() ? "*" : "*." + encloser);
+        }
+
+        private static boolean isUnder(String name, String zone) {
+            return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+        }
+
+        private static String parent(String name) {
+            int dotIndex = name.indexOf('.');
+            return dotIndex < 0 ? "" : name.substring(dotIndex + 1);
+        }
+
+        // names ending with a dot are absolute, anything else is relative to the origin and @ is the origin
+        private static String absoluteName(String name, String origin) {
+            name = name.toLowerCase(Locale.ROOT);
+            if (name.equals("@")) {
+                return origin;
+            }
+            if (name.endsWith(".")) {
+                return name.substring(0, name.length() - 1);
+            }
+            return origin.isEmpty() ? name : name + "." + origin;
+        }
+
+        private static int typeValue(String type, String where) throws IOException {
+            switch (type) {
+                case "A":
+                    return FakeAuthServer.TYPE_A;
+                case "NS":
+                    return FakeAuthServer.TYPE_NS;
+                case "CNAME":
+                    return FakeAuthServer.TYPE_CNAME;
+                case "SOA":
+                    return FakeAuthServer.TYPE_SOA;
+                case "PTR":
+                    return FakeAuthServer.TYPE_PTR;
+                case "MX":
+                    return FakeAuthServer.TYPE_MX;
+                case "AAAA":
+                    return FakeAuthServer.TYPE_AAAA;
+                default:
+                    throw new IOException(where + ": unsupported type " + type);
+            }
+        }
+
+        private static byte[] toRdata(String type, String[] fields, String origin, String where) throws IOException {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(rdata);
+            switch (type) {
+                case "A":
+                case "AAAA":
+                    InetAddress address = InetAddress.getByName(fields[0]);
+                    if (type.equals("A") ? !(address instanceof Inet4Address) : !(address instanceof Inet6Address)) {
+                        throw new IOException(where + ": " + fields[0] + " isnt an address for " + type);
+                    }
+                    out.write(address.getAddress());
+                    break;
+                case "NS":
+                case "CNAME":
+                case "PTR":
+                    out.write(Zone.toWireName(Zone.absoluteName(fields[0], origin)));
+                    break;
+                case "MX":
+                    out.writeShort(Integer.parseInt(fields[0]));
+                    out.write(Zone.toWireName(Zone.absoluteName(fields[1], origin)));
+                    break;
+                case "SOA":
+                    out.write(Zone.toWireName(Zone.absoluteName(fields[0], origin)));
+                    out.write(Zone.toWireName(Zone.absoluteName(fields[1], origin)));
+                    // serial, refresh, retry, expire and minimum
+                    for (int i = 2; i < 7; i++) {
+                        out.writeInt((int) Long.parseLong(fields[i]));
+                    }
+                    break;
+                default:
+                    throw new IOException(where + ": unsupported type " + type);
+            }
+            return rdata.toByteArray();
+        }
+
+        // the name as length prefixed labels ending with the root
+        private static byte[] toWireName(String name) {
+            ByteArrayOutputStream wireName = new ByteArrayOutputStream();
+            if (!name.isEmpty()) {
+                for (String label : name.split("\\.")) {
+                    wireName.write(label.length());
+                    wireName.writeBytes(label.getBytes());
+                }
+            }
+            wireName.write(0);
+            return wireName.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// lock free histogram of non negative values (e.g. latencies in microseconds) in the style of HdrHistogram
+// values below 128 get a bucket each, above that every power of two is split into 64 buckets
+// so a value is known to within about 1.5%, recording one is a couple of atomic adds and never allocates
+// many threads can record at the same time, reading while they do gives a close enough snapshot
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    // values from 2^MAX_MAGNITUDE up (about 13 days in microseconds) all go in the last bucket
+    private static final int MAX_MAGNITUDE = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(LatencyHistogram.bucketIndex(value));
+        this.sum.add(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    // the value that percentile percent (0 to 100) of the recorded values are at or below,
+    // given as the top of its bucket so it never understates, 0 if nothing was recorded
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[this.counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.bucketTop(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    // how many recorded values are at or below the value, counting whole buckets
+    // so it can be a little over when the value falls inside a bucket
+    public long getCountAtOrBelow(long value) {
+        int lastBucket = LatencyHistogram.bucketIndex(Math.max(0, value));
+        long count = 0;
+        for (int i = 0; i <= lastBucket; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKET_COUNT - 1;
+        }
+        // the top SUB_BUCKET_BITS bits of the value, without the leading one, pick the bucket in this power of two
+        int subBucket = (int) (value >> (magnitude - SUB_BUCKET_BITS + 1)) & (HALF_SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (magnitude - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // largest value that goes in the bucket
+    private static long bucketTop(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int magnitude = SUB_BUCKET_BITS + offset / HALF_SUB_BUCKET_COUNT;
+        int subBucket = offset % HALF_SUB_BUCKET_COUNT;
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        return ((long) (HALF_SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+}
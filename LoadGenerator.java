@@ -0,0 +1,304 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// load generator mode of the Client, run as: java Client --load resolver_ip resolver_port names_file qps duration_secs
+// replays the names in the file (over and over) at the target rate on an open loop schedule like dnsperf,
+// query n is due at start + n / qps however many are still waiting for responses
+// queries go out round robin over a few sockets and responses are matched back by id,
+// latency is measured from when a query was due so a generator that falls behind cant hide it
+
+public class LoadGenerator {
+    public static final int DEFAULT_SOCKETS = 4;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final int IDS_PER_SOCKET = 65536;
+    private static final String[] RCODE_NAMES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+
+    private final DatagramChannel[] channels;
+    // per socket the time (System.nanoTime) each id was due, 0 if the id isnt outstanding
+    private final AtomicLongArray[] outstanding;
+    private final int[] nextIds;
+    private final long timeoutNanos;
+
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    // queries not sent since every id of their socket was still outstanding
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder[] rcodeCounts = new LongAdder[16];
+
+    private LoadGenerator(String resolverIP, int resolverPort, int socketCount, int timeoutMillis) throws IOException {
+        this.channels = new DatagramChannel[socketCount];
+        this.outstanding = new AtomicLongArray[socketCount];
+        this.nextIds = new int[socketCount];
+        for (int i = 0; i < socketCount; i++) {
+            // connected so only the resolvers responses are read
+            this.channels[i] = DatagramChannel.open();
+            this.channels[i].connect(new InetSocketAddress(resolverIP, resolverPort));
+            this.outstanding[i] = new AtomicLongArray(LoadGenerator.IDS_PER_SOCKET);
+        }
+        for (int i = 0; i < this.rcodeCounts.length; i++) {
+            this.rcodeCounts[i] = new LongAdder();
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        int socketCount = LoadGenerator.DEFAULT_SOCKETS;
+        int timeoutMillis = LoadGenerator.DEFAULT_TIMEOUT_MILLIS;
+        int type = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--sockets=")) {
+                socketCount = LoadGenerator.parsePositive("sockets", arg.substring("--sockets=".length()));
+            } else if (arg.startsWith("--timeout-ms=")) {
+                timeoutMillis = LoadGenerator.parsePositive("timeout-ms", arg.substring("--timeout-ms=".length()));
+            } else if (arg.startsWith("--type=")) {
+                type = Client.getTypeAsInt(arg.substring("--type=".length()));
+                if (type == 0) {
+                    System.err.println("Error: invalid type, it should be MX, PTR, A, NS, CNAME.");
+                    Client.usageMessage();
+                    System.exit(1);
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() != 5) {
+            System.err.println("Error: invalid number of arguments");
+            Client.usageMessage();
+            System.exit(1);
+        }
+
+        String resolverIP = positional.get(0);
+        int resolverPort = LoadGenerator.parsePositive("resolver_port", positional.get(1));
+        String namesFile = positional.get(2);
+        int qps = LoadGenerator.parsePositive("qps", positional.get(3));
+        int durationSecs = LoadGenerator.parsePositive("duration_secs", positional.get(4));
+
+        try {
+            List<byte[]> queries = LoadGenerator.loadQueries(namesFile, type);
+            if (queries.isEmpty()) {
+                System.err.println("Error: no names in " + namesFile);
+                System.exit(1);
+            }
+            LoadGenerator generator = new LoadGenerator(resolverIP, resolverPort, socketCount, timeoutMillis);
+            generator.run(queries, qps, durationSecs);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // every name in the file (one per line) made into a query once up front, the id is filled in when sent
+    private static List<byte[]> loadQueries(String namesFile, int type) throws IOException {
+        List<byte[]> queries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(namesFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String name = line.trim();
+                if (name.isEmpty() || name.startsWith("#")) {
+                    continue;
+                }
+                // int id, boolean qr, int opcode, boolean aa, boolean tc, boolean rd, boolean ra, int rcode
+                DNSMessage dnsQuery = new DNSMessage(new DNSHeader(0, false, 0, false, false, false, false, 0));
+                dnsQuery.addQuestion(new DNSQuestion(name, type, 1));
+                dnsQuery.addAdditional(DNSResourceRecord.opt(Client.EDNS_PAYLOAD_SIZE));
+                queries.add(dnsQuery.toByteArray());
+            }
+        }
+        return queries;
+    }
+
+    private void run(List<byte[]> queries, int qps, int durationSecs) throws IOException {
+        for (int i = 0; i < this.channels.length; i++) {
+            int socketIndex = i;
+            Thread receiver = new Thread(() -> this.receive(socketIndex), "load-receiver-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        System.out.println("Sending " + queries.size() + " names at " + qps + " queries/s for " + durationSecs + "s over " + this.channels.length + " sockets.");
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSecs);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        ByteBuffer sendBuffer = ByteBuffer.allocate(DNSEncoder.MAX_MESSAGE_SIZE);
+        long queryNumber = 0;
+        while (true) {
+            long due = start + (long) (queryNumber * 1e9 / qps);
+            if (due >= end) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+
+            // behind schedule sends straight away, the latency still counts from when it was due
+            byte[] query = queries.get((int) (queryNumber % queries.size()));
+            this.send(query, (int) (queryNumber % this.channels.length), due, sendBuffer);
+            queryNumber++;
+
+            if (now >= nextReport) {
+                this.expireTimeouts(now);
+                this.report(now - start, false);
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+
+        // give the last queries until the timeout to come back
+        long waitUntil = System.nanoTime() + this.timeoutNanos;
+        while (System.nanoTime() < waitUntil && this.countOutstanding() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            this.expireTimeouts(System.nanoTime());
+        }
+        this.expireTimeouts(Long.MAX_VALUE);
+        long elapsed = Math.min(System.nanoTime(), end) - start;
+
+        for (DatagramChannel channel : this.channels) {
+            channel.close();
+        }
+        this.report(elapsed, true);
+    }
+
+    private void send(byte[] query, int socketIndex, long due, ByteBuffer sendBuffer) throws IOException {
+        AtomicLongArray socketOutstanding = this.outstanding[socketIndex];
+        // the next id on this socket that isnt waiting for a response
+        int id = this.nextIds[socketIndex];
+        int tries = 0;
+        while (!socketOutstanding.compareAndSet(id, 0, due)) {
+            id = (id + 1) & (LoadGenerator.IDS_PER_SOCKET - 1);
+            if (++tries == LoadGenerator.IDS_PER_SOCKET) {
+                this.skipped.increment();
+                return;
+            }
+        }
+        this.nextIds[socketIndex] = (id + 1) & (LoadGenerator.IDS_PER_SOCKET - 1);
+
+        sendBuffer.clear();
+        sendBuffer.put(query);
+        sendBuffer.putShort(0, (short) id);
+        sendBuffer.flip();
+        this.channels[socketIndex].write(sendBuffer);
+        this.sent.increment();
+    }
+
+    private void receive(int socketIndex) {
+        DatagramChannel channel = this.channels[socketIndex];
+        AtomicLongArray socketOutstanding = this.outstanding[socketIndex];
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(DNSEncoder.MAX_MESSAGE_SIZE);
+        while (true) {
+            try {
+                receiveBuffer.clear();
+                channel.read(receiveBuffer);
+                long now = System.nanoTime();
+                if (receiveBuffer.position() < 12) {
+                    continue;
+                }
+                // only the header is looked at, the id and the rcode
+                int id = receiveBuffer.getShort(0) & 0xFFFF;
+                int rcode = receiveBuffer.get(3) & 0x0F;
+                long due = socketOutstanding.getAndSet(id, 0);
+                if (due == 0) {
+                    // already timed out (or not ours)
+                    continue;
+                }
+                this.latencyMicros.record((now - due) / 1000);
+                this.rcodeCounts[rcode].increment();
+                this.received.increment();
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (IOException e) {
+                // e.g. the resolver isnt listening (icmp port unreachable), the query will time out
+            }
+        }
+    }
+
+    // forgets the queries that were due longer than the timeout ago and counts them as timed out
+    private void expireTimeouts(long now) {
+        for (AtomicLongArray socketOutstanding : this.outstanding) {
+            for (int id = 0; id < socketOutstanding.length(); id++) {
+                long due = socketOutstanding.get(id);
+                if (due != 0 && now - due > this.timeoutNanos && socketOutstanding.compareAndSet(id, due, 0)) {
+                    this.timeouts.increment();
+                }
+            }
+        }
+    }
+
+    private int countOutstanding() {
+        int count = 0;
+        for (AtomicLongArray socketOutstanding : this.outstanding) {
+            for (int id = 0; id < socketOutstanding.length(); id++) {
+                if (socketOutstanding.get(id) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void report(long elapsedNanos, boolean last) {
+        double elapsedSecs = Math.max(elapsedNanos, 1) / 1e9;
+        long received = this.received.sum();
+        if (!last) {
+            System.out.printf("%5.1fs sent %d, received %d, timeouts %d, p99 %.2fms%n",
+                elapsedSecs, this.sent.sum(), received, this.timeouts.sum(), this.latencyMicros.getValueAtPercentile(99) / 1000.0);
+            return;
+        }
+
+        System.out.println();
+        System.out.printf("Queries sent:      %d (%.0f/s)%n", this.sent.sum(), this.sent.sum() / elapsedSecs);
+        System.out.printf("Queries completed: %d (%.0f/s)%n", received, received / elapsedSecs);
+        System.out.printf("Queries timed out: %d%n", this.timeouts.sum());
+        if (this.skipped.sum() > 0) {
+            System.out.printf("Queries skipped:   %d (no free id)%n", this.skipped.sum());
+        }
+        System.out.println("Response codes:");
+        for (int rcode = 0; rcode < this.rcodeCounts.length; rcode++) {
+            long count = this.rcodeCounts[rcode].sum();
+            if (count > 0) {
+                String name = rcode < LoadGenerator.RCODE_NAMES.length ? LoadGenerator.RCODE_NAMES[rcode] : "RCODE " + rcode;
+                System.out.printf("  %-9s %d (%.1f%%)%n", name, count, 100.0 * count / received);
+            }
+        }
+        if (received == 0) {
+            // nothing to give latencies of
+            return;
+        }
+        System.out.println("Latency (ms):");
+        System.out.printf("  mean  %.3f%n", this.latencyMicros.getSum() / 1000.0 / received);
+        System.out.printf("  p50   %.3f%n", this.latencyMicros.getValueAtPercentile(50) / 1000.0);
+        System.out.printf("  p90   %.3f%n", this.latencyMicros.getValueAtPercentile(90) / 1000.0);
+        System.out.printf("  p99   %.3f%n", this.latencyMicros.getValueAtPercentile(99) / 1000.0);
+        System.out.printf("  p99.9 %.3f%n", this.latencyMicros.getValueAtPercentile(99.9) / 1000.0);
+        System.out.printf("  max   %.3f%n", this.latencyMicros.getMax() / 1000.0);
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // falls through to the error below
+        }
+        System.err.println("Error: invalid value for " + name + ", it should be an integer greater then 0");
+        Client.usageMessage();
+        System.exit(1);
+        return 0;
+    }
+}
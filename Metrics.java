@@ -0,0 +1,354 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// counters and latency histograms of what the resolver is doing, served as prometheus text
+// over http and as an mbean over JMX
+// recording is lock free (LongAdders and LatencyHistograms) since it happens on every query
+// and every upstream round trip, reading adds everything up so it is only done when asked
+
+public class Metrics implements MetricsMBean {
+    public static final String MBEAN_NAME = "dnsresolver:type=Metrics";
+    // past this many upstream servers the rest are counted together as "other",
+    // so a resolver that talks to the whole internet doesnt end up with a label per server
+    public static final int MAX_LABELLED_SERVERS = 256;
+    public static final String OTHER_SERVERS = "other";
+    // the prometheus bucket bounds, latencies in seconds and rounds as a count
+    private static final double[] LATENCY_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final double[] ROUND_BUCKETS = { 1, 2, 3, 4, 5, 6, 8, 10, 15, 20 };
+    private static final double[] DEPTH_BUCKETS = { 0, 1, 2, 3, 4, 5, 8 };
+
+    private static final LongAdder udpClientQueries = new LongAdder();
+    private static final LongAdder tcpClientQueries = new LongAdder();
+    private static final LatencyHistogram clientQueryMicros = new LatencyHistogram();
+    private static final LongAdder clientQueryErrors = new LongAdder();
+
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder negativeCacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder staleAnswers = new LongAdder();
+
+    private static final LatencyHistogram resolutionMicros = new LatencyHistogram();
+    // how many times one resolveDomainName raced a set of servers, a referral followed and a retry after a
+    // failed or unusable response both count, the lookups for a cname or glueless nameserver are resolutions of their own
+    private static final LatencyHistogram resolutionRounds = new LatencyHistogram();
+    // how far below the clients question each resolution was, one level per cname followed or glueless nameserver looked up
+    private static final LatencyHistogram resolutionDepth = new LatencyHistogram();
+    private static final LongAdder failedResolutions = new LongAdder();
+
+    private static final LatencyHistogram upstreamMicros = new LatencyHistogram();
+    private static final ConcurrentHashMap<String, ServerMetrics> servers = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    // failed if no response could be made for it, it is counted and timed either way
+    public static void recordClientQuery(boolean overTcp, long startNanos, boolean failed) {
+        (overTcp ? Metrics.tcpClientQueries : Metrics.udpClientQueries).increment();
+        Metrics.clientQueryMicros.record((System.nanoTime() - startNanos) / 1000);
+        if (failed) {
+            Metrics.clientQueryErrors.increment();
+        }
+    }
+
+    public static void recordCacheHit(boolean negative) {
+        (negative ? Metrics.negativeCacheHits : Metrics.cacheHits).increment();
+    }
+
+    public static void recordCacheMiss() {
+        Metrics.cacheMisses.increment();
+    }
+
+    public static void recordStaleAnswer() {
+        Metrics.staleAnswers.increment();
+    }
+
+    // one run of resolveDomainName, failed if it ran out of servers or time without an answer
+    public static void recordResolution(long startNanos, int rounds, int depth, boolean failed) {
+        Metrics.resolutionMicros.record((System.nanoTime() - startNanos) / 1000);
+        Metrics.resolutionRounds.record(rounds);
+        Metrics.resolutionDepth.record(depth);
+        if (failed) {
+            Metrics.failedResolutions.increment();
+        }
+    }
+
+    public static void recordUpstreamQuery(String serverIP, boolean overTcp) {
+        ServerMetrics serverMetrics = Metrics.serverMetrics(serverIP);
+        (overTcp ? serverMetrics.tcpQueries : serverMetrics.udpQueries).increment();
+    }
+
+    public static void recordUpstreamResponse(long sentAtNanos) {
+        Metrics.upstreamMicros.record((System.nanoTime() - sentAtNanos) / 1000);
+    }
+
+    public static void recordUpstreamTimeout(String serverIP) {
+        Metrics.serverMetrics(serverIP).timeouts.increment();
+    }
+
+    private static ServerMetrics serverMetrics(String serverIP) {
+        // a plain get first, it doesnt lock anything for servers already seen
+        ServerMetrics serverMetrics = Metrics.servers.get(serverIP);
+        if (serverMetrics != null) {
+            return serverMetrics;
+        }
+        if (Metrics.servers.size() >= Metrics.MAX_LABELLED_SERVERS) {
+            serverIP = Metrics.OTHER_SERVERS;
+        }
+        return Metrics.servers.computeIfAbsent(serverIP, ip -> new ServerMetrics());
+    }
+
+    // makes the metrics readable over JMX, does nothing if they already are
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(Metrics.MBEAN_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), name);
+            }
+        } catch (JMException e) {
+            System.out.println("Error: Couldnt register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    // serves the metrics at http://<any address>:port/metrics on a daemon thread
+    public static void startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", Metrics::handleScrape);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Serving metrics on port " + port + " at /metrics.");
+    }
+
+    private static void handleScrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestURI().getPath().equals("/metrics")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = Metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // everything in the prometheus text exposition format
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        Metrics.header(text, "dns_client_queries_total", "counter", "Client queries received, those that failed included.");
+        Metrics.sample(text, "dns_client_queries_total", "transport=\"udp\"", Metrics.udpClientQueries.sum());
+        Metrics.sample(text, "dns_client_queries_total", "transport=\"tcp\"", Metrics.tcpClientQueries.sum());
+        Metrics.histogram(text, "dns_client_query_duration_seconds", "Time taken to answer client queries, cache hits included.",
+            Metrics.clientQueryMicros, Metrics.LATENCY_BUCKETS, 1e6);
+        Metrics.header(text, "dns_client_query_errors_total", "counter", "Client queries that couldnt be parsed, resolved or answered.");
+        Metrics.sample(text, "dns_client_query_errors_total", null, Metrics.clientQueryErrors.sum());
+
+        Metrics.header(text, "dns_cache_lookups_total", "counter", "Cache lookups, including those for cname targets and nameserver addresses.");
+        Metrics.sample(text, "dns_cache_lookups_total", "result=\"hit\"", Metrics.cacheHits.sum());
+        Metrics.sample(text, "dns_cache_lookups_total", "result=\"negative_hit\"", Metrics.negativeCacheHits.sum());
+        Metrics.sample(text, "dns_cache_lookups_total", "result=\"miss\"", Metrics.cacheMisses.sum());
+        Metrics.header(text, "dns_stale_answers_total", "counter", "Expired answers served because resolving failed or was slow.");
+        Metrics.sample(text, "dns_stale_answers_total", null, Metrics.staleAnswers.sum());
+
+        Metrics.histogram(text, "dns_resolution_duration_seconds", "Time taken by iterative resolutions, cache misses only.",
+            Metrics.resolutionMicros, Metrics.LATENCY_BUCKETS, 1e6);
+        Metrics.histogram(text, "dns_resolution_upstream_rounds", "Rounds of upstream queries per resolution, one per referral followed or retry.",
+            Metrics.resolutionRounds, Metrics.ROUND_BUCKETS, 1);
+        Metrics.histogram(text, "dns_resolution_depth", "Cnames and glueless nameserver lookups between each resolution and the client question, 0 for the question itself.",
+            Metrics.resolutionDepth, Metrics.DEPTH_BUCKETS, 1);
+        Metrics.header(text, "dns_resolution_failures_total", "counter", "Resolutions that ran out of servers or time without an answer.");
+        Metrics.sample(text, "dns_resolution_failures_total", null, Metrics.failedResolutions.sum());
+
+        // sorted so scrapes list the servers in the same order
+        Map<String, ServerMetrics> sortedServers = new TreeMap<>(Metrics.servers);
+        Metrics.header(text, "dns_upstream_queries_total", "counter", "Queries sent to upstream servers.");
+        for (Map.Entry<String, ServerMetrics> entry : sortedServers.entrySet()) {
+            Metrics.sample(text, "dns_upstream_queries_total", "server=\"" + entry.getKey() + "\",transport=\"udp\"", entry.getValue().udpQueries.sum());
+            Metrics.sample(text, "dns_upstream_queries_total", "server=\"" + entry.getKey() + "\",transport=\"tcp\"", entry.getValue().tcpQueries.sum());
+        }
+        Metrics.header(text, "dns_upstream_timeouts_total", "counter", "Queries to upstream servers that timed out.");
+        for (Map.Entry<String, ServerMetrics> entry : sortedServers.entrySet()) {
+            Metrics.sample(text, "dns_upstream_timeouts_total", "server=\"" + entry.getKey() + "\"", entry.getValue().timeouts.sum());
+        }
+        Metrics.histogram(text, "dns_upstream_duration_seconds", "Round trip times of answered queries to upstream servers.",
+            Metrics.upstreamMicros, Metrics.LATENCY_BUCKETS, 1e6);
+
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        text.append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(Metrics.format(value)).append('\n');
+    }
+
+    // the histogram holds whole units (e.g. microseconds), divided by unitsPerValue to get the exposed value
+    // buckets are counted from the histograms own buckets so they can be a little over near a bound
+    private static void histogram(StringBuilder text, String name, String help, LatencyHistogram histogram, double[] buckets, double unitsPerValue) {
+        Metrics.header(text, name, "histogram", help);
+        long count = histogram.getCount();
+        for (double bucket : buckets) {
+            long atOrBelow = Math.min(count, histogram.getCountAtOrBelow((long) (bucket * unitsPerValue)));
+            Metrics.sample(text, name + "_bucket", "le=\"" + Metrics.format(bucket) + "\"", atOrBelow);
+        }
+        Metrics.sample(text, name + "_bucket", "le=\"+Inf\"", count);
+        Metrics.sample(text, name + "_sum", null, histogram.getSum() / unitsPerValue);
+        Metrics.sample(text, name + "_count", null, count);
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        // plain digits, e.g. 0.0005 rather than 5.0E-4
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private static double millisAtPercentile(LatencyHistogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public long getClientQueries() {
+        return Metrics.udpClientQueries.sum() + Metrics.tcpClientQueries.sum();
+    }
+
+    @Override
+    public long getClientQueryErrors() {
+        return Metrics.clientQueryErrors.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return Metrics.cacheHits.sum() + Metrics.negativeCacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return Metrics.cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = this.getCacheHits();
+        long lookups = hits + this.getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getStaleAnswers() {
+        return Metrics.staleAnswers.sum();
+    }
+
+    @Override
+    public long getResolutions() {
+        return Metrics.resolutionRounds.getCount();
+    }
+
+    @Override
+    public long getFailedResolutions() {
+        return Metrics.failedResolutions.sum();
+    }
+
+    @Override
+    public long getUpstreamQueries() {
+        long queries = 0;
+        for (ServerMetrics serverMetrics : Metrics.servers.values()) {
+            queries += serverMetrics.udpQueries.sum() + serverMetrics.tcpQueries.sum();
+        }
+        return queries;
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        long timeouts = 0;
+        for (ServerMetrics serverMetrics : Metrics.servers.values()) {
+            timeouts += serverMetrics.timeouts.sum();
+        }
+        return timeouts;
+    }
+
+    @Override
+    public double getUpstreamQueriesPerClientQuery() {
+        long clientQueries = this.getClientQueries();
+        return clientQueries == 0 ? 0 : (double) this.getUpstreamQueries() / clientQueries;
+    }
+
+    @Override
+    public double getClientQueryLatencyP50Millis() {
+        return Metrics.millisAtPercentile(Metrics.clientQueryMicros, 50);
+    }
+
+    @Override
+    public double getClientQueryLatencyP99Millis() {
+        return Metrics.millisAtPercentile(Metrics.clientQueryMicros, 99);
+    }
+
+    @Override
+    public double getResolutionLatencyP50Millis() {
+        return Metrics.millisAtPercentile(Metrics.resolutionMicros, 50);
+    }
+
+    @Override
+    public double getResolutionLatencyP99Millis() {
+        return Metrics.millisAtPercentile(Metrics.resolutionMicros, 99);
+    }
+
+    @Override
+    public double getUpstreamLatencyP50Millis() {
+        return Metrics.millisAtPercentile(Metrics.upstreamMicros, 50);
+    }
+
+    @Override
+    public double getUpstreamLatencyP99Millis() {
+        return Metrics.millisAtPercentile(Metrics.upstreamMicros, 99);
+    }
+
+    @Override
+    public double getMeanResolutionRounds() {
+        long resolutions = Metrics.resolutionRounds.getCount();
+        return resolutions == 0 ? 0 : (double) Metrics.resolutionRounds.getSum() / resolutions;
+    }
+
+    @Override
+    public long getMaxResolutionRounds() {
+        return Metrics.resolutionRounds.getMax();
+    }
+
+    @Override
+    public long getMaxResolutionDepth() {
+        return Metrics.resolutionDepth.getMax();
+    }
+
+    private static class ServerMetrics {
+        private final LongAdder udpQueries = new LongAdder();
+        private final LongAdder tcpQueries = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+    }
+}
@@ -0,0 +1,47 @@
+// what Metrics shows over JMX (e.g. in jconsole under dnsresolver:type=Metrics)
+// totals since the resolver started and percentiles in milliseconds
+
+public interface MetricsMBean {
+    long getClientQueries();
+
+    long getClientQueryErrors();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    // hits (answers, nxdomain and nodata) over all cache lookups
+    double getCacheHitRatio();
+
+    long getStaleAnswers();
+
+    long getResolutions();
+
+    long getFailedResolutions();
+
+    long getUpstreamQueries();
+
+    long getUpstreamTimeouts();
+
+    double getUpstreamQueriesPerClientQuery();
+
+    double getClientQueryLatencyP50Millis();
+
+    double getClientQueryLatencyP99Millis();
+
+    double getResolutionLatencyP50Millis();
+
+    double getResolutionLatencyP99Millis();
+
+    double getUpstreamLatencyP50Millis();
+
+    double getUpstreamLatencyP99Millis();
+
+    // rounds of upstream queries in one resolution, one per referral followed or retry
+    double getMeanResolutionRounds();
+
+    long getMaxResolutionRounds();
+
+    // cnames and glueless nameserver lookups the deepest resolution was below a client question
+    long getMaxResolutionDepth();
+}
@@ -1,39 +1,200 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Resolver {
 
     public static final int MIN_PORT = 1024;
     public static final int MAX_PORT = 65535;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 2000;
+    public static final int CACHE_STRIPES = 16;
+    public static final int DELEGATION_CACHE_SIZE = 10000;
+    public static final String ROOT_HINTS_FILE = "named.root";
+    // how long to wait before priming again when no root answered
+    public static final int PRIMING_RETRY_SECS = 60;
+    public static final int UPSTREAM_PORT = 53;
+    // udp sockets shared by every query sent to upstream servers
+    public static final int UPSTREAM_SOCKETS = 4;
+    public static final int DEFAULT_STAGGER_MILLIS = 100;
+    public static final int DEFAULT_DEADLINE_MILLIS = 5000;
+    // most cache refreshes running at the same time
+    public static final int MAX_PREFETCHES = 2;
+    // RFC 8767 suggests keeping stale data for 1 to 3 days
+    public static final int DEFAULT_STALE_WINDOW_SECS = 86400;
+    public static final int DEFAULT_STALE_ANSWER_MILLIS = 1800;
+    // most servers queried at the same time for one step of a resolution
+    public static final int MAX_RACING_SERVERS = 3;
+    // the EDNS(0) udp payload size from DNS flag day 2020, fits in one packet on nearly every path
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    public static final int DEFAULT_LISTENERS = 1;
+
+    // most client queries that can be resolved at the same time, set with --max-in-flight=
+    private static int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    // most answers kept in the cache, set with --cache-size=
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+    // most nxdomain and nodata answers kept, set with --negative-cache-size=
+    // kept apart from the answer cache so a flood of junk names cant evict real answers
+    private static int negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+    // how long to wait on a server before also asking the next one, set with --stagger-ms=
+    private static int staggerMillis = DEFAULT_STAGGER_MILLIS;
+    // total time a client query can spend being resolved, set with --deadline-ms=
+    private static int deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+    // the timeout argument, no server is waited on longer than this however slow it has been
+    private static int maxServerTimeoutMillis;
+    // how long expired answers are kept to serve stale, set with --stale-window=
+    private static int staleWindowSecs = DEFAULT_STALE_WINDOW_SECS;
+    // how long a client waits for a fresh answer before getting the stale one, set with --stale-answer-ms=
+    private static int staleAnswerMillis = DEFAULT_STALE_ANSWER_MILLIS;
+    // largest udp message taken from clients and servers, set with --edns-payload=
+    // advertised in the OPT record of every query sent and every response to a client using EDNS(0)
+    private static int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+    private static DNSResourceRecord ednsOpt;
+    // udp sockets sharing the port with SO_REUSEPORT, each read by its own thread, set with --listeners=
+    // the kernel spreads clients over them so receiving isnt held to one core
+    private static int listenerCount = DEFAULT_LISTENERS;
+    // the port upstream servers are asked on, set with --upstream-port= to reach a fake hierarchy
+    // package private so the benchmarks can point it at their own fake server
+    static int upstreamPort = UPSTREAM_PORT;
+    // where the root servers are read from at startup, set with --root-hints=
+    private static String rootHintsFile = ROOT_HINTS_FILE;
+    // port the prometheus metrics are served on, set with --metrics-port=, 0 doesnt serve them
+    private static int metricsPort = 0;
+
+    private static DNSCache answerCache;
+    private static DNSCache negativeCache;
+    private static UpstreamEngine upstream;
+    // only used to ask again when a udp response came back truncated
+    private static UpstreamTcpEngine upstreamTcp;
+    // resolutions currently running keyed by (qname, qtype, qclass), identical questions wait on these
+    private static final ConcurrentHashMap<String, CompletableFuture<DNSMessage>> inFlight = new ConcurrentHashMap<>();
+    private static final Semaphore prefetchPermits = new Semaphore(MAX_PREFETCHES);
+    // runs lookups a resolution starts alongside itself, like the addresses of glueless nameservers
+    private static final ExecutorService subResolutions = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "sub-resolution");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final DelegationCache delegationCache = new DelegationCache(DELEGATION_CACHE_SIZE);
 
     public static void main(String[] args) throws IOException {
         Resolver.argumentValidation(args);
 
         int resolverPort = Integer.parseInt(args[0]);
         int timeoutInSecs = Integer.parseInt(args[1]);
+        Resolver.startResolving(timeoutInSecs);
 
-        try (DatagramSocket resolverClientSocket = new DatagramSocket(resolverPort)) {;
-            byte[] receiveData = new byte[512];
-            while (true) {
-                System.out.println("Listening: ");
-                // network stack of the operating system takes care of the queuing process automatically.
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                resolverClientSocket.receive(receivePacket);
+        // the hints file is only read here, priming then keeps the roots fresh in the background
+        RootHints.load(Resolver.rootHintsFile);
+        ScheduledExecutorService rootScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "root-priming");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rootScheduler.execute(() -> Resolver.primeRootServers(rootScheduler));
+
+        // the metrics are always recorded, they can be read over JMX and if asked for over http
+        Metrics.registerMBean();
+        if (Resolver.metricsPort > 0) {
+            Metrics.startHttpServer(Resolver.metricsPort);
+        }
 
-                byte[] dnsQueryBytes = receivePacket.getData();
-                DNSMessage dnsQuery = new DNSMessage(dnsQueryBytes);
+        // each query is resolved on a worker so one slow domain doesnt hold up the others,
+        // the semaphore bounds how many queries are being resolved at the same time
+        ExecutorService workers = Executors.newFixedThreadPool(Resolver.maxInFlight);
+        Semaphore inFlight = new Semaphore(Resolver.maxInFlight);
 
-                System.out.println("Received query from Client.");
+        // tcp clients on the same port, their queries are resolved by the same workers
+        TcpListener tcpListener = new TcpListener(resolverPort, workers, inFlight, Resolver::serveTcpQuery);
+        tcpListener.start();
 
-                DNSMessage dnsResponse = Resolver.resolveDomainName(dnsQuery, timeoutInSecs);
+        // the first listener is read on this thread, the others get a thread each
+        DatagramChannel[] listeners = Resolver.openListeners(resolverPort, Resolver.listenerCount);
+        for (int i = 1; i < listeners.length; i++) {
+            DatagramChannel listener = listeners[i];
+            Thread thread = new Thread(() -> Resolver.listen(listener, workers, inFlight), "udp-listener-" + i);
+            thread.start();
+        }
+        Resolver.listen(listeners[0], workers, inFlight);
+    }
 
-                byte[] dnsResponseBytes = dnsResponse.toByteArray();
-                DatagramPacket sendPacket = new DatagramPacket(dnsResponseBytes, dnsResponseBytes.length, receivePacket.getAddress(), receivePacket.getPort());
-                resolverClientSocket.send(sendPacket);
+    // sets up the caches and the upstream engines, everything resolving needs apart from the root hints
+    // package private so the benchmarks can resolve without listening for clients
+    static void startResolving(int timeoutInSecs) throws IOException {
+        Resolver.maxServerTimeoutMillis = timeoutInSecs * 1000;
 
-                System.out.println("Returned response to Client.");
+        Resolver.answerCache = new DNSCache(Resolver.cacheSize, Resolver.CACHE_STRIPES, Resolver.staleWindowSecs);
+        Resolver.negativeCache = new DNSCache(Resolver.negativeCacheSize, Resolver.CACHE_STRIPES, 0);
+        Resolver.answerCache.setPrefetcher(Resolver::prefetch);
+
+        Resolver.ednsOpt = DNSResourceRecord.opt(Resolver.ednsPayloadSize);
+        Resolver.upstream = new UpstreamEngine(Resolver.UPSTREAM_SOCKETS, Resolver.ednsPayloadSize);
+        Resolver.upstream.start();
+        Resolver.upstreamTcp = new UpstreamTcpEngine();
+        Resolver.upstreamTcp.start();
+    }
+
+    // binds count udp sockets to the port, more than one share it with SO_REUSEPORT
+    private static DatagramChannel[] openListeners(int port, int count) throws IOException {
+        DatagramChannel[] listeners = new DatagramChannel[count];
+        for (int i = 0; i < count; i++) {
+            DatagramChannel listener = DatagramChannel.open();
+            if (count > 1) {
+                if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    System.err.println("Error: SO_REUSEPORT isnt supported here, run with --listeners=1");
+                    System.exit(1);
+                }
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            listener.bind(new InetSocketAddress(port));
+            listeners[i] = listener;
+        }
+        return listeners;
+    }
+
+    // reads queries off one listening socket and hands them to the workers
+    private static void listen(DatagramChannel listener, ExecutorService workers, Semaphore inFlight) {
+        // each listener has its own receive buffer, the query is copied out of it for the worker
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Resolver.ednsPayloadSize);
+        try {
+            while (true) {
+                System.out.println("Listening: ");
+                // network stack of the operating system takes care of the queuing process automatically.
+                receiveBuffer.clear();
+                SocketAddress clientAddress = listener.receive(receiveBuffer);
+                receiveBuffer.flip();
+                byte[] dnsQueryBytes = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(dnsQueryBytes);
+
+                // once the limit is reached stop reading until a worker frees up,
+                // the os keeps queuing packets in the meantime
+                inFlight.acquire();
+                workers.execute(() -> {
+                    try {
+                        Resolver.serveQuery(listener, dnsQueryBytes, clientAddress);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -41,9 +202,66 @@ public class Resolver {
         }
     }
 
+    // resolves one client query and sends the reply back to the address and port it came from
+    private static void serveQuery(DatagramChannel listener, byte[] dnsQueryBytes, SocketAddress clientAddress) {
+        try {
+            // sent straight out of this threads encoder buffer, no copy of the response is made
+            ByteBuffer dnsResponseBytes = Resolver.answerQuery(dnsQueryBytes, false);
+            // sending on a DatagramChannel is thread safe so workers can share the listening socket
+            listener.send(dnsResponseBytes, clientAddress);
+
+            System.out.println("Returned response to Client.");
+        } catch (Exception e) {
+            // only this query is dropped, the resolver keeps serving others
+            e.printStackTrace();
+        }
+    }
+
+    // resolves one query that came in over tcp, returns null if it cant be answered
+    // the response is copied out of the encoder buffer since it is written later by the listener thread
+    private static byte[] serveTcpQuery(byte[] dnsQueryBytes) {
+        try {
+            ByteBuffer encoded = Resolver.answerQuery(dnsQueryBytes, true);
+            byte[] dnsResponseBytes = new byte[encoded.remaining()];
+            encoded.get(dnsResponseBytes);
+            System.out.println("Returned response to Client over TCP.");
+            return dnsResponseBytes;
+        } catch (Exception e) {
+            // only this query is dropped, the connection keeps serving the others
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // parses and resolves a client query, and encodes the response into this threads encoder buffer
+    // every query is counted in the metrics, as an error if it couldnt be parsed, resolved or encoded
+    private static ByteBuffer answerQuery(byte[] dnsQueryBytes, boolean overTcp) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            DNSMessage dnsQuery = new DNSMessage(dnsQueryBytes);
+
+            System.out.println("Received query from Client.");
+
+            long deadline = System.currentTimeMillis() + Resolver.deadlineMillis;
+            DNSMessage dnsResponse = Resolver.resolve(dnsQuery, deadline, 0);
+
+            // over udp the response is cut down to what the client can take, 512 bytes unless its query had
+            // an OPT record, over tcp it can be as big as a message gets
+            // a query with an OPT record gets ours in the response (RFC 6891 7), whatever OPT the upstream server sent is dropped
+            int maxSize = overTcp ? DNSEncoder.MAX_MESSAGE_SIZE : Math.min(dnsQuery.getUdpPayloadSize(), Resolver.ednsPayloadSize);
+            DNSResourceRecord opt = dnsQuery.getOpt() == null ? null : Resolver.ednsOpt;
+            ByteBuffer encoded = DNSEncoder.encode(dnsResponse, opt, maxSize);
+            failed = false;
+            return encoded;
+        } finally {
+            Metrics.recordClientQuery(overTcp, startNanos, failed);
+        }
+    }
+
     private static void argumentValidation(String[] args) {
         // BASIC ARGUEMENT VALIDATION
-        if (args.length != 2) {
+        if (args.length < 2) {
             System.err.println("Error: invalid number of arguments");
             Resolver.usageMessage();
             System.exit(1);
@@ -75,171 +293,717 @@ public class Resolver {
             System.exit(1);
         }
 
+        // anything after the port and timeout is an optional --name=value setting
+        for (int i = 2; i < args.length; i++) {
+            Resolver.parseOption(args[i]);
+        }
+    }
 
+    private static void parseOption(String option) {
+        int equalsIndex = option.indexOf('=');
+        if (!option.startsWith("--") || equalsIndex < 0) {
+            System.err.println("Error: invalid option " + option + ", it should look like --name=value");
+            Resolver.usageMessage();
+            System.exit(1);
+        }
+
+        String name = option.substring(2, equalsIndex);
+        String value = option.substring(equalsIndex + 1);
+        switch (name) {
+            case "max-in-flight":
+                Resolver.maxInFlight = Resolver.parsePositiveOption(name, value);
+                break;
+            case "cache-size":
+                Resolver.cacheSize = Resolver.parsePositiveOption(name, value);
+                break;
+            case "negative-cache-size":
+                Resolver.negativeCacheSize = Resolver.parsePositiveOption(name, value);
+                break;
+            case "stagger-ms":
+                Resolver.staggerMillis = Resolver.parsePositiveOption(name, value);
+                break;
+            case "deadline-ms":
+                Resolver.deadlineMillis = Resolver.parsePositiveOption(name, value);
+                break;
+            case "stale-window":
+                Resolver.staleWindowSecs = Resolver.parsePositiveOption(name, value);
+                break;
+            case "stale-answer-ms":
+                Resolver.staleAnswerMillis = Resolver.parsePositiveOption(name, value);
+                break;
+            case "listeners":
+                Resolver.listenerCount = Resolver.parsePositiveOption(name, value);
+                break;
+            case "upstream-port":
+                Resolver.upstreamPort = Resolver.parsePositiveOption(name, value);
+                if (Resolver.upstreamPort > Resolver.MAX_PORT) {
+                    System.err.println("Error: invalid value for --" + name + ", it should be between 1 and 65535");
+                    Resolver.usageMessage();
+                    System.exit(1);
+                }
+                break;
+            case "root-hints":
+                if (value.isEmpty()) {
+                    System.err.println("Error: --" + name + " needs a file name");
+                    Resolver.usageMessage();
+                    System.exit(1);
+                }
+                Resolver.rootHintsFile = value;
+                break;
+            case "metrics-port":
+                Resolver.metricsPort = Resolver.parsePositiveOption(name, value);
+                if (Resolver.metricsPort > Resolver.MAX_PORT) {
+                    System.err.println("Error: invalid value for --" + name + ", it should be between 1 and 65535");
+                    Resolver.usageMessage();
+                    System.exit(1);
+                }
+                break;
+            case "edns-payload":
+                Resolver.ednsPayloadSize = Resolver.parsePositiveOption(name, value);
+                if (Resolver.ednsPayloadSize < DNSMessage.MIN_UDP_PAYLOAD_SIZE || Resolver.ednsPayloadSize > DNSEncoder.MAX_MESSAGE_SIZE) {
+                    System.err.println("Error: invalid value for --" + name + ", it should be between 512 and 65535");
+                    Resolver.usageMessage();
+                    System.exit(1);
+                }
+                break;
+            default:
+                System.err.println("Error: unknown option --" + name);
+                Resolver.usageMessage();
+                System.exit(1);
+        }
     }
 
-    private static Stack<String> loadRootServers() throws IOException {
-        Stack<String> rootServers = new Stack<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader("named.root"))) {
-            String line;
+    private static int parsePositiveOption(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // falls through to the error below
+        }
+        System.err.println("Error: invalid value for --" + name + ", it should be an integer greater then 0");
+        Resolver.usageMessage();
+        System.exit(1);
+        return 0;
+    }
 
-            while ((line = reader.readLine()) != null) {
-                // Remove leading and trailing whitespace
-                line = line.trim();
+    private static Stack<String> loadRootServers() {
+        // the hints are already in memory, this only copies them into a fresh stack to pop from
+        Stack<String> rootServers = new Stack<>();
+        rootServers.addAll(RootHints.getRootServers());
+        ServerStats.orderByLatency(rootServers, 0);
+        return rootServers;
+    }
 
-                // Ignore empty lines
-                if (line.isEmpty()) {
+    // asks the roots for the current root ns set and its addresses (RFC 8109) and
+    // schedules the next priming for when that set expires
+    private static void primeRootServers(ScheduledExecutorService scheduler) {
+        int nextPrimingSecs = Resolver.PRIMING_RETRY_SECS;
+        try {
+            DNSMessage primingQuery = Resolver.constructDNSQuery("", 2);
+            Stack<String> slist = Resolver.loadRootServers();
+            while (!slist.isEmpty()) {
+                byte[] dnsResponseBytes = Resolver.contactServer(DNSEncoder.encode(primingQuery, Resolver.ednsOpt, DNSEncoder.MAX_MESSAGE_SIZE), slist.pop());
+                if (dnsResponseBytes.length == 0) {
                     continue;
                 }
 
-                // Ignore lines starting with a semi-colon
-                if (line.startsWith(";")) {
+                DNSMessage dnsResponse = new DNSMessage(dnsResponseBytes);
+                if (dnsResponse.header.rcode != 0) {
                     continue;
                 }
 
-                // Ignore lines starting with a full stop
-                if (line.startsWith(".")) {
-                    continue;
+                int ttl = DNSCache.MAX_TTL;
+                boolean hasNs = false;
+                for (DNSResourceRecord answer : dnsResponse.answers) {
+                    if (answer.type == 2) {
+                        hasNs = true;
+                        ttl = Math.min(ttl, answer.ttl < 0 ? DNSCache.MAX_TTL : answer.ttl);
+                    }
                 }
-
-                // Ignore lines containing "AAAA" records
-                if (line.contains("AAAA")) {
+                List<String> servers = new ArrayList<>();
+                for (DNSResourceRecord additional : dnsResponse.additionals) {
+                    if (additional.type == 1) {
+                        servers.add(Client.typeIPAnswer(additional.rdata));
+                    }
+                }
+                if (!hasNs || servers.isEmpty()) {
                     continue;
                 }
 
-                // Split the line to get the IP address (assuming it's the last field)
-                String[] fields = line.split("\\s+");
-                if (fields.length >= 2) {
-                    String ip = fields[fields.length - 1];
-                    rootServers.push(ip);
-                }
+                RootHints.update(servers);
+                nextPrimingSecs = Math.max(ttl, Resolver.PRIMING_RETRY_SECS);
+                System.out.println("Primed " + servers.size() + " root servers, next priming in " + nextPrimingSecs + "s.");
+                break;
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("The file named.root was not found: " + e.getMessage());
-        } catch (IOException e) {
-            System.out.println("Error reading file: " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // keeps going on the scheduler for as long as the resolver runs
+        scheduler.schedule(() -> Resolver.primeRootServers(scheduler), nextPrimingSecs, TimeUnit.SECONDS);
+    }
+
+    // answers from the cache when it can, otherwise resolves the name and caches the result
+    // the deadline is the time in millis by which the client query has to be answered
+    // depth is how many cnames and glueless nameserver lookups down from the clients question this is, 0 for the question itself
+    private static DNSMessage resolve(DNSMessage dnsQuery, long deadline, int depth) throws IOException {
+        DNSMessage cachedResponse = Resolver.answerCache.get(dnsQuery);
+        boolean negative = false;
+        if (cachedResponse == null) {
+            cachedResponse = Resolver.negativeCache.get(dnsQuery);
+            negative = true;
+        }
+        if (cachedResponse != null) {
+            Metrics.recordCacheHit(negative);
+            System.out.println("Answered from cache: " + dnsQuery.questions.get(0).qName);
+            return cachedResponse;
+        }
+
+        Metrics.recordCacheMiss();
+
+        DNSMessage staleResponse = Resolver.answerCache.getStale(dnsQuery);
+        if (staleResponse == null) {
+            return Resolver.resolveUncached(dnsQuery, deadline, depth);
+        }
+        return Resolver.resolveOrServeStale(dnsQuery, staleResponse, deadline, depth);
+    }
+
+    // resolves in the background and gives the client the fresh answer if it comes quickly,
+    // otherwise (or if resolving fails) the stale one, the resolution carries on and refreshes the cache
+    // the resolution gets a deadline of its own like a prefetch, only the wait for it is bound by the clients deadline
+    private static DNSMessage resolveOrServeStale(DNSMessage dnsQuery, DNSMessage staleResponse, long deadline, int depth) {
+        long refreshDeadline = System.currentTimeMillis() + Resolver.deadlineMillis;
+        CompletableFuture<DNSMessage> resolution = CompletableFuture.supplyAsync(() -> {
+            try {
+                return Resolver.resolveUncached(dnsQuery, refreshDeadline, depth);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Resolver.subResolutions);
+
+        try {
+            long waitMillis = Math.min(Resolver.staleAnswerMillis, deadline - System.currentTimeMillis());
+            DNSMessage dnsResponse = resolution.get(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+            if (!Resolver.isFailedResolution(dnsResponse)) {
+                return dnsResponse;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // too slow or failed, answered stale below
+        }
+
+        Metrics.recordStaleAnswer();
+        System.out.println("Answered stale from cache: " + dnsQuery.questions.get(0).qName);
+        return staleResponse;
+    }
+
+    // server failure, or the empty response made when every server was exhausted
+    private static boolean isFailedResolution(DNSMessage dnsResponse) {
+        if (dnsResponse.header.rcode == 2) {
+            return true;
+        }
+        return dnsResponse.header.rcode == 0 && dnsResponse.answers.isEmpty() && dnsResponse.authorities.isEmpty();
+    }
+
+    // resolves the name without looking in the cache first, then caches the result
+    // if the same question is already being resolved it waits for that resolution instead of starting another
+    private static DNSMessage resolveUncached(DNSMessage dnsQuery, long deadline, int depth) throws IOException {
+        DNSQuestion question = dnsQuery.questions.get(0);
+        String key = DNSCache.key(question.qName, question.qType, question.qClass);
+        CompletableFuture<DNSMessage> resolution = new CompletableFuture<>();
+        CompletableFuture<DNSMessage> runningResolution = Resolver.inFlight.putIfAbsent(key, resolution);
+        if (runningResolution != null) {
+            System.out.println("Joining resolution already running for " + question.qName);
+            return Resolver.awaitResolution(runningResolution, dnsQuery, deadline);
+        }
+
+        try {
+            DNSMessage dnsResponse = Resolver.resolveDomainName(dnsQuery, deadline, depth);
+            if (DNSCache.isNegative(dnsResponse)) {
+                Resolver.negativeCache.putNegative(dnsQuery, dnsResponse);
+            } else {
+                Resolver.answerCache.put(dnsQuery, dnsResponse);
+            }
+            resolution.complete(dnsResponse);
+            return dnsResponse;
+        } catch (IOException | RuntimeException e) {
+            resolution.completeExceptionally(e);
+            throw e;
+        } finally {
+            Resolver.inFlight.remove(key, resolution);
+        }
+    }
+
+    // refreshes a cached answer in the background while clients keep being answered from the cache
+    // skipped if too many prefetches are already running so they never hold up client queries,
+    // returns false then so the cache lets a later hit try again
+    private static boolean prefetch(DNSMessage dnsQuery) {
+        if (!Resolver.prefetchPermits.tryAcquire()) {
+            return false;
+        }
+        // a copy since the clients query object keeps being used to build its response
+        DNSMessage prefetchQuery = new DNSMessage(dnsQuery.toByteArray());
+        System.out.println("Prefetching " + prefetchQuery.questions.get(0).qName);
+        Resolver.subResolutions.execute(() -> {
+            try {
+                Resolver.resolveUncached(prefetchQuery, System.currentTimeMillis() + Resolver.deadlineMillis, 0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                Resolver.prefetchPermits.release();
+            }
+        });
+        return true;
+    }
+
+    // waits (no later than the deadline) for a resolution another query started and
+    // returns a copy of its response with this querys id
+    private static DNSMessage awaitResolution(CompletableFuture<DNSMessage> runningResolution, DNSMessage dnsQuery, long deadline) {
+        try {
+            DNSMessage sharedResponse = runningResolution.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            // every waiting query gets its own copy since the header is changed
+            DNSMessage dnsResponse = new DNSMessage(sharedResponse.toByteArray());
+            dnsResponse.header.id = dnsQuery.header.id;
+            return dnsResponse;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // the other resolution failed or didnt finish in time
+            System.out.println("Error: Shared resolution for " + dnsQuery.questions.get(0).qName + " gave no answer.");
+        }
+        return Resolver.constructDNSResponseNoAnswers(dnsQuery);
+    }
+
+    // package private so the benchmarks can time a resolution without the caches in front of it
+    // records how long it took, how many rounds of servers were raced, how deep it was and whether it ended without an answer
+    static DNSMessage resolveDomainName(DNSMessage dnsQuery, long deadline, int depth) throws IOException {
+        long startNanos = System.nanoTime();
+        ResolutionRounds rounds = new ResolutionRounds();
+        boolean failed = true;
+        try {
+            DNSMessage dnsResponse = Resolver.resolveIteratively(dnsQuery, deadline, depth, rounds);
+            failed = Resolver.isFailedResolution(dnsResponse);
+            return dnsResponse;
+        } finally {
+            Metrics.recordResolution(startNanos, rounds.count, depth, failed);
         }
-        return rootServers;
     }
 
-    private static DNSMessage resolveDomainName(DNSMessage dnsQuery, int timeoutInSecs) throws IOException {
+    // counts each round of servers raced for the metrics
+    private static DNSMessage resolveIteratively(DNSMessage dnsQuery, long deadline, int depth, ResolutionRounds rounds) throws IOException {
         // Initially, contact a root server
         // Load the root server ip addresses.
         Stack<String> slist = Resolver.loadRootServers();
 
-        // this dns message is only returned if allt he queries are exhausted and the last one is its error flag set
-        DNSMessage dnsResponse = null;
+        // if a referral for one of the name's zones has been cached start with its nameservers,
+        // they go on top of the stack so the roots are only tried if they all fail
+        String qName = dnsQuery.questions.get(0).qName;
+        // the zone each server in the slist was given as a nameserver of, the roots arent in it
+        // a server can only refer to zones below its own (its bailiwick), anything else is ignored
+        ConcurrentHashMap<String, String> serverZones = new ConcurrentHashMap<>();
+        String cachedZone = Resolver.delegationCache.closestZone(qName);
+        List<String> cachedServers = cachedZone == null ? new ArrayList<>() : Resolver.delegationCache.getServers(cachedZone);
+        if (!cachedServers.isEmpty()) {
+            System.out.println("Starting from cached nameservers for " + qName);
+            int cachedStart = slist.size();
+            slist.addAll(cachedServers);
+            for (String cachedServer : cachedServers) {
+                serverZones.put(cachedServer, cachedZone);
+            }
+            ServerStats.orderByLatency(slist, cachedStart);
+        }
 
-        while (!slist.isEmpty()) {
-            String serverIP = slist.pop();
+        // addresses of glueless nameservers that came in after querying the zone had already started
+        Queue<String> lateServers = new ConcurrentLinkedQueue<>();
+        CompletableFuture<Void> gluelessDone = CompletableFuture.completedFuture(null);
 
-            // contact the server and get response in bytes
-            byte[] dnsResponseBytes = Resolver.contactServer(dnsQuery.toByteArray(), serverIP, timeoutInSecs);
+        while (System.currentTimeMillis() < deadline) {
+            Resolver.pushLateServers(slist, lateServers);
+            if (slist.isEmpty()) {
+                if (gluelessDone.isDone()) {
+                    break;
+                }
+                // nothing left to ask but some nameserver addresses are still being looked up
+                Resolver.awaitQuietly(gluelessDone, deadline);
+                continue;
+            }
+
+            // contact the next servers in the slist and get the first good response in bytes
+            // the query carries our OPT record in place of any the client sent so servers can answer with large responses
+            ByteBuffer upstreamQuery = DNSEncoder.encode(dnsQuery, Resolver.ednsOpt, DNSEncoder.MAX_MESSAGE_SIZE);
+            rounds.count++;
+            RacerResponse racerResponse = Resolver.raceServers(upstreamQuery, slist, deadline);
 
-            if (dnsResponseBytes.length == 0) {
-                // something went wrong with the query to server (e.g. timeout)
+            if (racerResponse == null) {
+                // something went wrong with the query to every server tried (e.g. timeout)
                 continue;
                 // go to next server
             }
+            byte[] dnsResponseBytes = racerResponse.dnsResponseBytes;
+            String askedZone = serverZones.getOrDefault(racerResponse.serverIP, "");
 
-            dnsResponse = new DNSMessage(dnsResponseBytes);
+            // most responses are referrals that are only looked at here and then thrown away,
+            // so they are read through a view over the bytes and only parsed fully when returned
+            // every read of the response is in this try, a name that loops or a record that runs
+            // off the end counts as this server failing and the others are still asked
+            String newQNAME = null;
+            Referral referral = null;
+            try {
+                DNSMessageView dnsResponse = new DNSMessageView(dnsResponseBytes);
 
-            // Check the error message
-            if (dnsResponse.header.rcode == 2) {
-                // server failure
-                // continue query process with other servers in SLIST
+                // Check the error message
+                if (dnsResponse.getRcode() == 2) {
+                    // server failure
+                    // continue query process with other servers in SLIST
+                    continue;
+                } else if (dnsResponse.getRcode() != 0) {
+                    // terminate resolution process and forward to client
+                    return new DNSMessage(dnsResponseBytes);
+                }
+
+                // assumes only 1 question
+                // check if it contains any valid answers
+                int qType = dnsResponse.getQuestionType();
+                for (int i = 0; i < dnsResponse.getCount(DNSMessageView.ANSWER); i++) {
+                    if (qType == dnsResponse.getType(DNSMessageView.ANSWER, i)) {
+                        // question type equals answer type
+                        return new DNSMessage(dnsResponseBytes);
+                    }
+                }
+
+                // check if theres cnames
+                for (int i = 0; i < dnsResponse.getCount(DNSMessageView.ANSWER); i++) {
+                    if (qType == 1 && dnsResponse.getType(DNSMessageView.ANSWER, i) == 5) {
+                        // if question is type a and answer is cname
+                        // the new name is resolved below, outside the try
+                        newQNAME = dnsResponse.getRdataName(DNSMessageView.ANSWER, i);
+                        break;
+                    }
+                }
+
+                if (newQNAME == null) {
+                    // no answer but a soa in the authority section means the name exists without
+                    // records of this type (nodata), the other servers would say the same
+                    if (Resolver.isNoDataResponse(dnsResponse)) {
+                        return new DNSMessage(dnsResponseBytes);
+                    }
+                    referral = Resolver.readReferral(dnsResponse);
+                }
+            } catch (RuntimeException e) {
+                // response is cut short or malformed, treat it like the server didnt answer
+                System.out.println("Error: Malformed response from server.");
                 continue;
-            } else if (dnsResponse.header.rcode != 0) {
-                // terminate resolution process and forward to client
-                return dnsResponse;
             }
 
-            // assumes only 1 question
-            // check if it contains any valid answers
-            for (DNSResourceRecord answer : dnsResponse.answers) {
-                if (dnsResponse.questions.get(0).qType == answer.type) {
-                    // question type equals answer type
-                    return dnsResponse;
-                }
+            if (newQNAME != null) {
+                // create a new query for the new name
+                // start search all over again from roots
+                return Resolver.resolve(constructDNSQueryQuestionChanged(dnsQuery, newQNAME), deadline, depth + 1);
             }
 
-            // check if theres cnames
-            for (DNSResourceRecord answer : dnsResponse.answers) {
-                if (dnsResponse.questions.get(0).qType == 1 && answer.type == 5) {
-                    // if question is type a and answer is cname
-                    // create a new query for the new name
-                    // start search all over again from roots
-                    String newQNAME = dnsResponse.extractDomainFromRData(answer.rdata);
-                    return Resolver.resolveDomainName(constructDNSQueryQuestionChanged(dnsQuery, newQNAME), timeoutInSecs);
-                }
+            // a referral has to be for a zone strictly below the one the server was asked as a nameserver of
+            // and one the name sits in, otherwise a server for evil.com could hand out nameservers for com
+            if (referral == null || !Resolver.isInBailiwick(referral.zone, askedZone, qName)) {
+                System.out.println("Error: Ignoring referral to " + (referral == null ? null : referral.zone) + " from a server for " + (askedZone.isEmpty() ? "the root" : askedZone) + ".");
+                continue;
             }
+            String zone = referral.zone;
+            int referralTtl = referral.ttl;
+            List<String> referralIPs = new ArrayList<>();
 
-            int amountReferrals = 0;
-            // no valid answer thus check for referals that are type A
-            for (DNSResourceRecord additional : dnsResponse.additionals) {
-                if (additional.type == 1) {
-                    // A
-                    // the rdata section is a byte array of numbers (typeA)
-                    // add the ip address to the slist stack
-                    slist.push((additional.rdata[0] & 0xFF) + "." + (additional.rdata[1] & 0xFF) + "." + (additional.rdata[2] & 0xFF) + "." + (additional.rdata[3] & 0xFF));
-                    amountReferrals++;
-                }
+            // the referred servers go on top of the stack, fastest expected one last so its popped first
+            int referralStart = slist.size();
+            // no valid answer thus use the glue a records of the referral
+            for (String referralIP : referral.glueIPs) {
+                // add the ip address to the slist stack
+                slist.push(referralIP);
+                serverZones.put(referralIP, zone);
+                referralIPs.add(referralIP);
             }
 
             // if theres no server referals go find ips of the domains in authority section
             // then add to slist
-            if (amountReferrals == 0) {
+            if (referral.glueIPs.isEmpty()) {
                 System.out.println("Now resolving authority nameservers for IP addresses.");
-                for (DNSResourceRecord authority : dnsResponse.authorities) {
-                    if (authority.type == 2) {
-                        String name = dnsResponse.extractDomainFromRData(authority.rdata);
-                        DNSMessage authorityQuery = Resolver.constructDNSQuery(name, 1);
-                        DNSMessage authorityResponse = Resolver.resolveDomainName(authorityQuery, timeoutInSecs);
-                        for (DNSResourceRecord answer : authorityResponse.answers) {
-                            if (answer.type == 1) {
-                                String authortiesIp = Client.typeIPAnswer(answer.rdata);
-                                slist.push(authortiesIp);
-                                System.out.println("Authority nameservers IP = " + authortiesIp);
-                            }
+                // every nameserver is looked up at the same time and querying the zone starts as soon as
+                // the first address is known, the others are added to the slist as they come in
+                lateServers = new ConcurrentLinkedQueue<>();
+                Queue<String> foundServers = lateServers;
+                Queue<String> allServers = new ConcurrentLinkedQueue<>();
+                CompletableFuture<Void> firstAddress = new CompletableFuture<>();
+                List<CompletableFuture<Void>> lookups = new ArrayList<>();
+                for (String name : referral.nameserverNames) {
+                    lookups.add(CompletableFuture.runAsync(() -> {
+                        List<String> addresses = Resolver.lookupAddresses(name, deadline, depth + 1);
+                        for (String address : addresses) {
+                            serverZones.put(address, zone);
                         }
-                    }
+                        foundServers.addAll(addresses);
+                        allServers.addAll(addresses);
+                        if (!addresses.isEmpty()) {
+                            firstAddress.complete(null);
+                        }
+                    }, Resolver.subResolutions));
                 }
+                gluelessDone = CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]));
+                Resolver.awaitQuietly(CompletableFuture.anyOf(firstAddress, gluelessDone), deadline);
+
+                String authortiesIp;
+                while ((authortiesIp = lateServers.poll()) != null) {
+                    slist.push(authortiesIp);
+                    referralIPs.add(authortiesIp);
+                    System.out.println("Authority nameservers IP = " + authortiesIp);
+                }
+
+                // once every lookup is done the zone is cached again with all of its nameservers
+                gluelessDone.thenRun(() -> Resolver.delegationCache.put(zone, new ArrayList<>(allServers), referralTtl));
             }
+
+            ServerStats.orderByLatency(slist, referralStart);
+            Resolver.delegationCache.put(zone, referralIPs, referralTtl);
         }
 
         // this means no answer was found
         return constructDNSResponseNoAnswers(dnsQuery);
     }
 
-    private static byte[] contactServer(byte[] dnsQuery, String serverIP, int timeoutInSecs) {
-        System.out.println("Contacting server: " + serverIP);
+    // the zone being referred to is the owner of the ns records, its nameservers are remembered for
+    // later queries along with the smallest ttl of the referral, null if there are no ns records
+    private static Referral readReferral(DNSMessageView dnsResponse) {
+        Referral referral = null;
+        for (int i = 0; i < dnsResponse.getCount(DNSMessageView.AUTHORITY); i++) {
+            if (dnsResponse.getType(DNSMessageView.AUTHORITY, i) == 2) {
+                String owner = dnsResponse.getName(DNSMessageView.AUTHORITY, i).toLowerCase();
+                if (referral == null) {
+                    referral = new Referral(owner);
+                } else if (!owner.equals(referral.zone)) {
+                    // ns records for some other zone, only the first zone is followed
+                    continue;
+                }
+                referral.addTtl(dnsResponse.getTtl(DNSMessageView.AUTHORITY, i));
+                referral.nameserverNames.add(dnsResponse.getRdataName(DNSMessageView.AUTHORITY, i).toLowerCase());
+            }
+        }
+        if (referral == null) {
+            return null;
+        }
+
+        for (int i = 0; i < dnsResponse.getCount(DNSMessageView.ADDITIONAL); i++) {
+            // only addresses of the nameservers just named are glue, any other a record is ignored
+            if (dnsResponse.getType(DNSMessageView.ADDITIONAL, i) == 1
+                    && referral.nameserverNames.contains(dnsResponse.getName(DNSMessageView.ADDITIONAL, i).toLowerCase())) {
+                referral.glueIPs.add(dnsResponse.getRdataAddress(DNSMessageView.ADDITIONAL, i));
+                referral.addTtl(dnsResponse.getTtl(DNSMessageView.ADDITIONAL, i));
+            }
+        }
+        return referral;
+    }
+
+    // true if the referral zone is strictly below the zone the server was asked about and contains the name
+    private static boolean isInBailiwick(String referralZone, String askedZone, String qName) {
+        return !referralZone.equalsIgnoreCase(askedZone)
+            && DelegationCache.isZoneOf(askedZone, referralZone)
+            && DelegationCache.isZoneOf(referralZone, qName);
+    }
+
+    // a soa in the authority section and no ns records to follow
+    private static boolean isNoDataResponse(DNSMessageView dnsResponse) {
+        boolean hasSoa = false;
+        for (int i = 0; i < dnsResponse.getCount(DNSMessageView.AUTHORITY); i++) {
+            int type = dnsResponse.getType(DNSMessageView.AUTHORITY, i);
+            if (type == 2) {
+                return false;
+            } else if (type == 6) {
+                hasSoa = true;
+            }
+        }
+        return hasSoa;
+    }
+
+    // ip addresses of a nameserver, empty if it couldnt be resolved
+    private static List<String> lookupAddresses(String name, long deadline, int depth) {
+        List<String> addresses = new ArrayList<>();
         try {
-            DatagramSocket resolverServerSocket = new DatagramSocket();
-            resolverServerSocket.setSoTimeout(timeoutInSecs * 1000);
+            DNSMessage authorityResponse = Resolver.resolve(Resolver.constructDNSQuery(name, 1), deadline, depth);
+            for (DNSResourceRecord answer : authorityResponse.answers) {
+                if (answer.type == 1) {
+                    addresses.add(Client.typeIPAnswer(answer.rdata));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return addresses;
+    }
 
-            InetAddress serverAddress = InetAddress.getByName(serverIP);
-            DatagramPacket sendPacket = new DatagramPacket(dnsQuery, dnsQuery.length, serverAddress, 53);
+    // moves nameserver addresses that arrived late onto the slist, fastest expected one on top
+    private static void pushLateServers(Stack<String> slist, Queue<String> lateServers) {
+        int lateStart = slist.size();
+        String authortiesIp;
+        while ((authortiesIp = lateServers.poll()) != null) {
+            slist.push(authortiesIp);
+            System.out.println("Authority nameservers IP = " + authortiesIp);
+        }
+        ServerStats.orderByLatency(slist, lateStart);
+    }
 
-            resolverServerSocket.send(sendPacket);
+    // waits for the future to finish but no later than the deadline, whatever the outcome
+    private static void awaitQuietly(CompletableFuture<?> future, long deadline) {
+        try {
+            future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // timed out or failed, the caller checks what it needs itself
+        }
+    }
 
-            byte[] responseBuffer = new byte[512];
-            DatagramPacket receivePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+    // sends the query to the next server in the slist, and if no usable response has come back
+    // after the stagger also to the one after it, and so on while still listening to the earlier ones
+    // the first usable response wins and the queries still outstanding are cancelled
+    // returns the winning response with the server that sent it, or null if the servers tried all failed
+    // and the slist ran out, or the deadline passed
+    // the query buffer is this threads encoder buffer so nothing else may be encoded until this returns
+    private static RacerResponse raceServers(ByteBuffer dnsQuery, Stack<String> slist, long deadline) {
+        BlockingQueue<RacerResponse> completed = new LinkedBlockingQueue<>();
+        List<CompletableFuture<byte[]>> racing = new ArrayList<>();
+        int outstanding = 0;
+        try {
+            while (outstanding > 0 || !slist.isEmpty()) {
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    System.out.println("Error: Deadline reached while waiting for servers.");
+                    break;
+                }
 
-            resolverServerSocket.receive(receivePacket);
+                if (outstanding == 0) {
+                    Resolver.startRacer(dnsQuery, slist.pop(), false, deadline, racing, completed);
+                    outstanding++;
+                }
 
-            resolverServerSocket.close();
+                // only wait the stagger if there is another server that could be started
+                boolean canStartAnother = !slist.isEmpty() && outstanding < Resolver.MAX_RACING_SERVERS;
+                long waitMillis = canStartAnother ? Math.min(Resolver.staggerMillis, remainingMillis) : remainingMillis;
+                RacerResponse racerResponse = completed.poll(waitMillis, TimeUnit.MILLISECONDS);
 
-            byte[] dnsResponseBytes = receivePacket.getData();
+                if (racerResponse == null) {
+                    // nothing back yet, bring in the next server alongside the ones already asked
+                    if (canStartAnother) {
+                        Resolver.startRacer(dnsQuery, slist.pop(), false, deadline, racing, completed);
+                        outstanding++;
+                    }
+                    continue;
+                }
+
+                outstanding--;
+                byte[] dnsResponseBytes = racerResponse.dnsResponseBytes;
+                if (Resolver.isTruncated(dnsResponseBytes) && !racerResponse.overTcp) {
+                    // the answer didnt fit in udp, ask the same server again over tcp
+                    System.out.println("Truncated response from " + racerResponse.serverIP + ", retrying over TCP.");
+                    Resolver.startRacer(dnsQuery, racerResponse.serverIP, true, deadline, racing, completed);
+                    outstanding++;
+                    continue;
+                }
+                if (Resolver.isUsableResponse(dnsResponseBytes)) {
+                    return racerResponse;
+                }
+                // a failure frees a slot straight away, the loop starts the next server if none are left running
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // the losers (or ones still waiting) are no longer needed
+            for (CompletableFuture<byte[]> response : racing) {
+                response.cancel(false);
+            }
+        }
+    }
 
+    private static void startRacer(ByteBuffer dnsQuery, String serverIP, boolean overTcp, long deadline, List<CompletableFuture<byte[]>> racing, BlockingQueue<RacerResponse> completed) {
+        // wait as long as this server usually needs, but never past the deadline
+        // tcp gets twice that since a new connection needs a handshake before the query
+        long serverTimeoutMillis = ServerStats.retransmitTimeout(serverIP, Resolver.maxServerTimeoutMillis) * (overTcp ? 2 : 1);
+        long timeoutMillis = Math.min(serverTimeoutMillis, deadline - System.currentTimeMillis());
+        System.out.println("Contacting server: " + serverIP);
+        long sentAt = System.nanoTime();
+        CompletableFuture<byte[]> query = overTcp
+            ? Resolver.upstreamTcp.query(dnsQuery, serverIP, Resolver.upstreamPort)
+            : Resolver.upstream.query(dnsQuery, serverIP, Resolver.upstreamPort);
+        Metrics.recordUpstreamQuery(serverIP, overTcp);
+        CompletableFuture<byte[]> response = query.orTimeout(Math.max(1, timeoutMillis), TimeUnit.MILLISECONDS);
+        racing.add(response);
+        response.whenComplete((dnsResponseBytes, error) -> {
+            if (error == null) {
+                if (!overTcp) {
+                    // a tcp round trip may include connecting so it would skew the estimate
+                    ServerStats.recordRtt(serverIP, (System.nanoTime() - sentAt) / 1000000);
+                    Metrics.recordUpstreamResponse(sentAt);
+                }
+                completed.add(new RacerResponse(serverIP, overTcp, dnsResponseBytes));
+                return;
+            }
+            if (error instanceof TimeoutException) {
+                ServerStats.recordTimeout(serverIP);
+                Metrics.recordUpstreamTimeout(serverIP);
+                System.out.println("Error: Timeout reached while waiting for server " + serverIP + ". Timeout = " + timeoutMillis + "ms.");
+                System.out.println("Skipping server.");
+            }
+            // a failed or cancelled query counts as an unusable response
+            completed.add(new RacerResponse(serverIP, overTcp, new byte[0]));
+        });
+    }
+
+    // TC is the 7th bit of the 3rd byte
+    private static boolean isTruncated(byte[] dnsResponseBytes) {
+        return dnsResponseBytes.length >= 12 && (dnsResponseBytes[2] & 0x02) != 0;
+    }
+
+    // a response that can end the race, anything else (no response, server failure) moves on to another server
+    private static boolean isUsableResponse(byte[] dnsResponseBytes) {
+        if (dnsResponseBytes.length < 12) {
+            return false;
+        }
+        // RCODE is the last 4 bits of the 4th byte
+        int rcode = dnsResponseBytes[3] & 0x0F;
+        return rcode != 2;
+    }
+
+    private static byte[] contactServer(ByteBuffer dnsQuery, String serverIP) {
+        long timeoutMillis = ServerStats.retransmitTimeout(serverIP, Resolver.maxServerTimeoutMillis);
+        System.out.println("Contacting server: " + serverIP);
+        long sentAt = System.nanoTime();
+        CompletableFuture<byte[]> response = Resolver.upstream.query(dnsQuery, serverIP, Resolver.upstreamPort);
+        Metrics.recordUpstreamQuery(serverIP, false);
+        try {
+            byte[] dnsResponseBytes = response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            ServerStats.recordRtt(serverIP, (System.nanoTime() - sentAt) / 1000000);
+            Metrics.recordUpstreamResponse(sentAt);
+            if (Resolver.isTruncated(dnsResponseBytes)) {
+                // the answer didnt fit in udp, ask again over tcp
+                System.out.println("Truncated response from " + serverIP + ", retrying over TCP.");
+                response = Resolver.upstreamTcp.query(dnsQuery, serverIP, Resolver.upstreamPort);
+                Metrics.recordUpstreamQuery(serverIP, true);
+                dnsResponseBytes = response.get(timeoutMillis * 2, TimeUnit.MILLISECONDS);
+            }
             // Return the response
             return dnsResponseBytes;
-        } catch (SocketTimeoutException e) {
-            System.out.println("Error: Timeout reached while waiting for server's response. Timeout = " + timeoutInSecs + "s.");
+        } catch (TimeoutException e) {
+            ServerStats.recordTimeout(serverIP);
+            Metrics.recordUpstreamTimeout(serverIP);
+            System.out.println("Error: Timeout reached while waiting for server's response. Timeout = " + timeoutMillis + "ms.");
             System.out.println("Skipping server.");
             return new byte[0];
         } catch (Exception e) {
             e.printStackTrace();
             return new byte[0];
+        } finally {
+            // stops the engine waiting on a query that timed out or failed, does nothing if it was answered
+            response.cancel(false);
         }
     }
 
@@ -274,7 +1038,7 @@ public class Resolver {
     }
 
     public static void usageMessage() {
-        System.err.println("Usage: java Resolver port timeout");
+        System.err.println("Usage: java Resolver port timeout [--max-in-flight=n] [--cache-size=n] [--negative-cache-size=n] [--stagger-ms=n] [--deadline-ms=n] [--stale-window=secs] [--stale-answer-ms=n] [--edns-payload=bytes] [--listeners=n] [--root-hints=file] [--upstream-port=n] [--metrics-port=n]");
     }
 
     private static DNSMessage constructDNSQuery(String name, int type) {
@@ -298,4 +1062,38 @@ public class Resolver {
 
         return dnsQuery;
     }
-}
\ No newline at end of file
+
+    // the ns records and glue of a referral, read out of the response before any of it is used
+    private static class Referral {
+        private final String zone;
+        private int ttl = DNSCache.MAX_TTL;
+        private final List<String> nameserverNames = new ArrayList<>();
+        private final List<String> glueIPs = new ArrayList<>();
+
+        private Referral(String zone) {
+            this.zone = zone;
+        }
+
+        private void addTtl(int ttl) {
+            this.ttl = Math.min(this.ttl, ttl < 0 ? DNSCache.MAX_TTL : ttl);
+        }
+    }
+
+    // how many rounds of servers one resolveIteratively raced, read by resolveDomainName for the metrics
+    private static class ResolutionRounds {
+        private int count;
+    }
+
+    // a response (empty if there was none) to one of the queries racing in raceServers
+    private static class RacerResponse {
+        private final String serverIP;
+        private final boolean overTcp;
+        private final byte[] dnsResponseBytes;
+
+        private RacerResponse(String serverIP, boolean overTcp, byte[] dnsResponseBytes) {
+            this.serverIP = serverIP;
+            this.overTcp = overTcp;
+            this.dnsResponseBytes = dnsResponseBytes;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// the root server addresses the resolver starts from
+// named.root is read once at startup, after that the list is only replaced as a whole
+// (by priming queries to the roots) so readers never need a lock
+// their ttl isnt kept here, the priming response it comes from schedules the next priming
+
+public class RootHints {
+    private static volatile List<String> rootServers = Collections.emptyList();
+
+    // parses the hints file and replaces the current root servers with its addresses
+    public static void load(String fileName) {
+        List<String> servers = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                // Remove leading and trailing whitespace
+                line = line.trim();
+
+                // Ignore empty lines
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                // Ignore lines starting with a semi-colon
+                if (line.startsWith(";")) {
+                    continue;
+                }
+
+                // Ignore lines starting with a full stop
+                if (line.startsWith(".")) {
+                    continue;
+                }
+
+                // Ignore lines containing "AAAA" records
+                if (line.contains("AAAA")) {
+                    continue;
+                }
+
+                // the IP address is the last field
+                String[] fields = line.split("\\s+");
+                if (fields.length >= 2) {
+                    servers.add(fields[fields.length - 1]);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("The file " + fileName + " was not found: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + e.getMessage());
+        }
+
+        RootHints.update(servers);
+    }
+
+    // swaps in a new set of root servers, an empty set is ignored so a failed priming keeps the old ones
+    public static void update(List<String> servers) {
+        if (servers.isEmpty()) {
+            return;
+        }
+        RootHints.rootServers = Collections.unmodifiableList(new ArrayList<>(servers));
+    }
+
+    public static List<String> getRootServers() {
+        return RootHints.rootServers;
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// smoothed round trip times of upstream servers by ip, kept for as long as the resolver runs
+// they are used to try the servers that are expected to answer fastest first, and to work out
+// how long to wait on each server before giving up on it
+// the estimates are updated like tcp does (RFC 6298) and drift back to the default
+// the longer a server goes without being used, so servers that have recovered get noticed again
+
+public class ServerStats {
+    // what a server that has never been queried is expected to take
+    public static final double INITIAL_RTT_MILLIS = 100;
+    // the largest estimate a server can get from timing out
+    public static final double MAX_RTT_MILLIS = 10000;
+    // timeout used for a server that has never answered
+    public static final long INITIAL_RTO_MILLIS = 400;
+    // shortest timeout a server can get however fast it is
+    public static final long MIN_RTO_MILLIS = 50;
+    // most times the timeout is doubled for timeouts in a row
+    public static final int MAX_BACKOFFS = 6;
+    // how long until half of the difference to the default estimate has been forgotten
+    public static final long DECAY_HALF_LIFE_MILLIS = 10 * 60 * 1000;
+    // chance of moving a random server to the front so others keep being measured
+    public static final double EXPLORE_PROBABILITY = 0.05;
+
+    private static final ConcurrentHashMap<String, Stats> servers = new ConcurrentHashMap<>();
+
+    // records how long a server took to answer
+    public static void recordRtt(String serverIP, long rttMillis) {
+        Stats stats = ServerStats.servers.computeIfAbsent(serverIP, ip -> new Stats());
+        synchronized (stats) {
+            if (stats.samples == 0) {
+                stats.srtt = rttMillis;
+                stats.rttvar = rttMillis / 2.0;
+            } else {
+                // alpha = 1/8 and beta = 1/4 like tcp
+                stats.rttvar = 0.75 * stats.rttvar + 0.25 * Math.abs(stats.srtt - rttMillis);
+                stats.srtt = 0.875 * stats.srtt + 0.125 * rttMillis;
+            }
+            stats.samples++;
+            stats.timeouts = 0;
+            stats.lastUpdated = System.currentTimeMillis();
+        }
+    }
+
+    // every timeout in a row doubles the servers estimate and timeout so it drops behind the others
+    public static void recordTimeout(String serverIP) {
+        Stats stats = ServerStats.servers.computeIfAbsent(serverIP, ip -> new Stats());
+        synchronized (stats) {
+            stats.timeouts = Math.min(ServerStats.MAX_BACKOFFS, stats.timeouts + 1);
+            stats.lastUpdated = System.currentTimeMillis();
+        }
+    }
+
+    // how long to wait for the server, srtt + 4 * rttvar clamped to the min and max
+    // and doubled for each timeout in a row
+    public static long retransmitTimeout(String serverIP, long maxMillis) {
+        Stats stats = ServerStats.servers.get(serverIP);
+        if (stats == null) {
+            return Math.min(ServerStats.INITIAL_RTO_MILLIS, maxMillis);
+        }
+        synchronized (stats) {
+            double rto = stats.samples == 0 ? ServerStats.INITIAL_RTO_MILLIS : stats.srtt + 4 * stats.rttvar;
+            rto = Math.max(ServerStats.MIN_RTO_MILLIS, rto) * (1L << stats.timeouts);
+            return (long) Math.min(rto, maxMillis);
+        }
+    }
+
+    // how long the server is expected to take right now
+    public static double expectedRtt(String serverIP) {
+        Stats stats = ServerStats.servers.get(serverIP);
+        if (stats == null) {
+            return ServerStats.INITIAL_RTT_MILLIS;
+        }
+        synchronized (stats) {
+            long age = System.currentTimeMillis() - stats.lastUpdated;
+            double remembered = Math.pow(0.5, (double) age / ServerStats.DECAY_HALF_LIFE_MILLIS);
+            double srtt = Math.min(ServerStats.MAX_RTT_MILLIS, stats.srtt * (1L << stats.timeouts));
+            return ServerStats.INITIAL_RTT_MILLIS + (srtt - ServerStats.INITIAL_RTT_MILLIS) * remembered;
+        }
+    }
+
+    // sorts the servers from index fromIndex onwards so the fastest expected one is last,
+    // which is the top of the stack the resolver pops from
+    public static void orderByLatency(List<String> slist, int fromIndex) {
+        List<String> candidates = slist.subList(fromIndex, slist.size());
+        if (candidates.size() < 2) {
+            return;
+        }
+
+        // work the estimates out once so they cant change while sorting
+        Map<String, Double> expected = new HashMap<>();
+        for (String serverIP : candidates) {
+            expected.put(serverIP, ServerStats.expectedRtt(serverIP));
+        }
+        candidates.sort((a, b) -> Double.compare(expected.get(b), expected.get(a)));
+
+        // now and then put a random one first so a server with a bad estimate gets another go
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < ServerStats.EXPLORE_PROBABILITY) {
+            Collections.swap(candidates, random.nextInt(candidates.size()), candidates.size() - 1);
+        }
+    }
+
+    private static class Stats {
+        private double srtt = ServerStats.INITIAL_RTT_MILLIS;
+        private double rttvar = ServerStats.INITIAL_RTT_MILLIS / 2;
+        private int samples = 0;
+        // timeouts in a row since the last answer
+        private int timeouts = 0;
+        private long lastUpdated = System.currentTimeMillis();
+    }
+}
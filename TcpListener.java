@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+// accepts client queries over tcp, each sent with a 2 byte length in front of it (RFC 1035 4.2.2)
+// a client can have many queries outstanding on one connection, every query is resolved on a worker
+// and its response is written as soon as it is ready, not in the order the queries came in (RFC 7766 6.2.1.1)
+// connections that sit idle, or whose client doesnt read its responses, are closed
+// tcp queries take a permit from the same semaphore as udp ones before going to a worker, when there
+// are none left the query stays in the read buffer and the connection stops reading until one frees up
+
+public class TcpListener implements Runnable {
+    // how long a connection with nothing outstanding can stay open without sending a query
+    public static final int IDLE_TIMEOUT_MILLIS = 10000;
+    // how long responses can wait to be written before the client counts as not reading them
+    public static final int WRITE_TIMEOUT_MILLIS = 10000;
+    // most queries being resolved for one connection, reading stops until one finishes
+    public static final int MAX_PENDING_PER_CONNECTION = 256;
+    // most response bytes waiting to be written to one connection before it is closed
+    public static final int MAX_WRITE_BACKLOG = 1 << 20;
+    public static final int MAX_CONNECTIONS = 1000;
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    // shared with the udp listeners, bounds the queries queued on the workers
+    private final Semaphore inFlight;
+    // takes the bytes of a query and returns the bytes of its response, or null to not answer it
+    private final Function<byte[], byte[]> queryHandler;
+    // only used on the selector thread
+    private final Set<Connection> connections = new HashSet<>();
+    // connections with responses a worker finished, the selector thread starts writing them
+    private final Queue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+    // connections holding a complete query that couldnt get a permit, only used on the selector thread
+    private final Set<Connection> waitingForPermit = new LinkedHashSet<>();
+
+    public TcpListener(int port, ExecutorService workers, Semaphore inFlight, Function<byte[], byte[]> queryHandler) throws IOException {
+        this.workers = workers;
+        this.inFlight = inFlight;
+        this.queryHandler = queryHandler;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // starts the selector thread, it is a daemon so it doesnt keep the resolver alive
+    public void start() {
+        Thread thread = new Thread(this, "tcp-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // wakes up at least once a second to close idle and stuck connections
+                this.selector.select(1000);
+
+                Connection ready;
+                while ((ready = this.readyToWrite.poll()) != null) {
+                    ready.startWriting();
+                }
+                this.retryWaitingForPermit();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selectionKey = keys.next();
+                    keys.remove();
+                    if (!selectionKey.isValid()) {
+                        continue;
+                    }
+                    if (selectionKey.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) selectionKey.attachment();
+                    try {
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            connection.write();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        // the client went away or broke the framing
+                        this.close(connection);
+                    }
+                }
+
+                this.closeStaleConnections();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.serverChannel.accept()) != null) {
+            if (this.connections.size() >= TcpListener.MAX_CONNECTIONS) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.selectionKey = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            this.connections.add(connection);
+        }
+    }
+
+    // called every time round the loop, permits freed by udp queries dont wake the selector
+    // so a waiting connection can sit for up to a second when there is no tcp traffic
+    private void retryWaitingForPermit() {
+        if (this.waitingForPermit.isEmpty()) {
+            return;
+        }
+        List<Connection> waiting = new ArrayList<>(this.waitingForPermit);
+        this.waitingForPermit.clear();
+        for (int i = 0; i < waiting.size(); i++) {
+            if (this.inFlight.availablePermits() == 0) {
+                // no point trying the rest yet, they keep their place in line
+                this.waitingForPermit.addAll(waiting.subList(i, waiting.size()));
+                return;
+            }
+            Connection connection = waiting.get(i);
+            try {
+                connection.takeQueries();
+            } catch (IOException e) {
+                this.close(connection);
+            }
+        }
+    }
+
+    private void closeStaleConnections() {
+        long now = System.currentTimeMillis();
+        List<Connection> stale = new ArrayList<>();
+        for (Connection connection : this.connections) {
+            if (connection.isIdle(now) || connection.isStuck(now)) {
+                stale.add(connection);
+            }
+        }
+        for (Connection connection : stale) {
+            this.close(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        this.connections.remove(connection);
+        this.waitingForPermit.remove(connection);
+        connection.closed = true;
+        connection.selectionKey.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey selectionKey;
+        // holds a partly read query until the rest of it arrives
+        private ByteBuffer readBuffer = ByteBuffer.allocate(TcpListener.INITIAL_READ_BUFFER_SIZE);
+        // framed responses from the workers, only taken off by the selector thread
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        // queries handed to workers whose responses havent been written yet
+        private int pending;
+        // the client shut down its side, the responses still to come are written before closing
+        private boolean inputClosed;
+        private long lastRead = System.currentTimeMillis();
+        // when the oldest response still waiting to be written was queued, 0 if nothing is waiting
+        private long writeWaitingSince;
+        // set by the selector thread, workers finishing late just drop their response
+        private volatile boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            if (this.channel.read(this.readBuffer) < 0) {
+                if (this.pending == 0) {
+                    throw new IOException("Connection closed by client");
+                }
+                this.inputClosed = true;
+                this.updateInterest();
+                return;
+            }
+            this.lastRead = System.currentTimeMillis();
+            this.takeQueries();
+        }
+
+        // hands every complete query in the read buffer to a worker, a partial one stays in the buffer
+        // and so do any past the limit on outstanding queries until some responses have been written
+        private void takeQueries() throws IOException {
+            this.readBuffer.flip();
+            int needed = 0;
+            while (this.readBuffer.remaining() >= 2 && this.pending < TcpListener.MAX_PENDING_PER_CONNECTION) {
+                int length = this.readBuffer.getShort(this.readBuffer.position()) & 0xFFFF;
+                if (length < 12) {
+                    throw new IOException("Query shorter than a header");
+                }
+                if (this.readBuffer.remaining() < 2 + length) {
+                    needed = 2 + length;
+                    break;
+                }
+                if (!TcpListener.this.inFlight.tryAcquire()) {
+                    // every worker is busy, leave the query in the buffer and try again later
+                    TcpListener.this.waitingForPermit.add(this);
+                    break;
+                }
+                this.readBuffer.getShort();
+                byte[] dnsQueryBytes = new byte[length];
+                this.readBuffer.get(dnsQueryBytes);
+                this.pending++;
+                TcpListener.this.workers.execute(() -> this.resolve(dnsQueryBytes));
+            }
+            this.readBuffer.compact();
+
+            if (needed > this.readBuffer.capacity()) {
+                // a query bigger than the buffer, grow it so the whole query fits
+                ByteBuffer biggerBuffer = ByteBuffer.allocate(needed);
+                this.readBuffer.flip();
+                biggerBuffer.put(this.readBuffer);
+                this.readBuffer = biggerBuffer;
+            }
+            this.updateInterest();
+        }
+
+        // runs on a worker
+        private void resolve(byte[] dnsQueryBytes) {
+            byte[] dnsResponseBytes = null;
+            try {
+                dnsResponseBytes = TcpListener.this.queryHandler.apply(dnsQueryBytes);
+            } finally {
+                TcpListener.this.inFlight.release();
+                ByteBuffer frame = null;
+                if (dnsResponseBytes != null && !this.closed) {
+                    frame = ByteBuffer.allocate(2 + dnsResponseBytes.length);
+                    frame.putShort((short) dnsResponseBytes.length);
+                    frame.put(dnsResponseBytes);
+                    frame.flip();
+                }
+                this.writeQueue.add(frame != null ? frame : ByteBuffer.allocate(0));
+                TcpListener.this.readyToWrite.add(this);
+                TcpListener.this.selector.wakeup();
+            }
+        }
+
+        // runs on the selector thread once workers have queued responses
+        private void startWriting() {
+            if (this.closed) {
+                return;
+            }
+            if (this.writeWaitingSince == 0) {
+                this.writeWaitingSince = System.currentTimeMillis();
+            }
+            this.updateInterest();
+        }
+
+        private void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = this.writeQueue.peek()) != null) {
+                if (!frame.hasRemaining()) {
+                    // an empty frame only marks a query that got no response
+                    this.writeQueue.poll();
+                    this.pending--;
+                    continue;
+                }
+                this.channel.write(frame);
+                if (frame.hasRemaining()) {
+                    // the socket buffer is full, carry on when it is writable again
+                    break;
+                }
+                this.writeQueue.poll();
+                this.pending--;
+                this.writeWaitingSince = System.currentTimeMillis();
+            }
+            if (this.writeQueue.isEmpty()) {
+                this.writeWaitingSince = 0;
+            }
+            if (this.readBuffer.position() > 0) {
+                // queries already read may have been held back by the limit
+                this.takeQueries();
+            } else {
+                this.updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (this.closed) {
+                return;
+            }
+            // stop reading queries while too many are already being resolved for this client
+            // or while one already read is waiting for a free worker
+            boolean canRead = this.pending < TcpListener.MAX_PENDING_PER_CONNECTION && !this.inputClosed
+                && !TcpListener.this.waitingForPermit.contains(this);
+            int interest = canRead ? SelectionKey.OP_READ : 0;
+            if (!this.writeQueue.isEmpty()) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            this.selectionKey.interestOps(interest);
+        }
+
+        private boolean isIdle(long now) {
+            if (TcpListener.this.waitingForPermit.contains(this)) {
+                return false;
+            }
+            return this.pending == 0 && (this.inputClosed || now - this.lastRead > TcpListener.IDLE_TIMEOUT_MILLIS);
+        }
+
+        // the client isnt reading its responses, nothing was written for a while or too much is waiting
+        private boolean isStuck(long now) {
+            if (this.writeWaitingSince != 0 && now - this.writeWaitingSince > TcpListener.WRITE_TIMEOUT_MILLIS) {
+                return true;
+            }
+            return this.queuedBytes() > TcpListener.MAX_WRITE_BACKLOG;
+        }
+
+        private int queuedBytes() {
+            int queued = 0;
+            for (ByteBuffer frame : this.writeQueue) {
+                queued += frame.remaining();
+            }
+            return queued;
+        }
+    }
+}
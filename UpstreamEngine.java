@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// sends queries to upstream servers over a small pool of non blocking udp sockets
+// one selector thread reads every response and hands it to the query waiting for it,
+// matched on the server address, port, id and question
+// callers get a future instead of blocking a socket of their own for each query
+
+public class UpstreamEngine implements Runnable {
+
+    private final Selector selector;
+    private final DatagramChannel[] channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final ConcurrentHashMap<String, PendingQuery> pending = new ConcurrentHashMap<>();
+    // the udp payload size advertised in our queries, a bigger response would be cut off by the os
+    private final int receiveBufferSize;
+
+    public UpstreamEngine(int socketCount, int receiveBufferSize) throws IOException {
+        this.receiveBufferSize = receiveBufferSize;
+        this.selector = Selector.open();
+        this.channels = new DatagramChannel[socketCount];
+        for (int i = 0; i < socketCount; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            // bound to a random local port chosen by the os
+            channel.bind(null);
+            channel.configureBlocking(false);
+            channel.register(this.selector, SelectionKey.OP_READ);
+            this.channels[i] = channel;
+        }
+    }
+
+    // starts the selector thread, it is a daemon so it doesnt keep the resolver alive
+    public void start() {
+        Thread thread = new Thread(this, "upstream-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // sends the query and returns a future that completes with the response bytes
+    // the id the server sees is a fresh random one, the response gets the callers id back
+    // cancelling the future (e.g. after a timeout) forgets the query
+    // the query is a buffer from DNSEncoder (starting at index 0 of its array), it is sent as is
+    // and only the id is swapped in place for the send so the bytes are never copied
+    public CompletableFuture<byte[]> query(ByteBuffer dnsQuery, String serverIP, int port) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        try {
+            InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+            DNSQuestion question = new DNSQuestion(12, dnsQuery.array());
+            int originalId = dnsQuery.getShort(0) & 0xFFFF;
+            PendingQuery pendingQuery = new PendingQuery(response, originalId);
+
+            // pick an id no other outstanding query to this server has for this question
+            int upstreamId;
+            String key;
+            do {
+                upstreamId = ThreadLocalRandom.current().nextInt(65536);
+                key = UpstreamEngine.key(serverAddress, upstreamId, question);
+            } while (this.pending.putIfAbsent(key, pendingQuery) != null);
+
+            // however the future ends (answered, cancelled, failed) the query is forgotten
+            String pendingKey = key;
+            response.whenComplete((bytes, error) -> this.pending.remove(pendingKey, pendingQuery));
+
+            DatagramChannel channel = this.channels[(this.nextChannel.getAndIncrement() & 0x7FFFFFFF) % this.channels.length];
+            int sent;
+            dnsQuery.putShort(0, (short) upstreamId);
+            try {
+                sent = channel.send(dnsQuery.duplicate(), serverAddress);
+            } finally {
+                dnsQuery.putShort(0, (short) originalId);
+            }
+            if (sent == 0) {
+                // the socket buffer is full, same as the packet getting lost
+                throw new IOException("Upstream socket buffer full");
+            }
+        } catch (Exception e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(this.receiveBufferSize);
+        while (true) {
+            try {
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selectionKey = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) selectionKey.channel();
+
+                    // read everything that is queued on this socket
+                    SocketAddress source;
+                    while ((source = channel.receive(receiveBuffer)) != null) {
+                        receiveBuffer.flip();
+                        byte[] dnsResponseBytes = new byte[receiveBuffer.remaining()];
+                        receiveBuffer.get(dnsResponseBytes);
+                        receiveBuffer.clear();
+                        this.dispatch((InetSocketAddress) source, dnsResponseBytes);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void dispatch(InetSocketAddress source, byte[] dnsResponseBytes) {
+        if (dnsResponseBytes.length < 12) {
+            // not even a full header
+            return;
+        }
+
+        String key;
+        try {
+            int id = ((dnsResponseBytes[0] & 0xFF) << 8) | (dnsResponseBytes[1] & 0xFF);
+            key = UpstreamEngine.key(source, id, new DNSQuestion(12, dnsResponseBytes));
+        } catch (RuntimeException e) {
+            // malformed question, it cant belong to any of our queries
+            return;
+        }
+
+        PendingQuery pendingQuery = this.pending.remove(key);
+        if (pendingQuery != null) {
+            // put the callers id back
+            dnsResponseBytes[0] = (byte) (pendingQuery.originalId >> 8);
+            dnsResponseBytes[1] = (byte) (pendingQuery.originalId);
+            pendingQuery.response.complete(dnsResponseBytes);
+        }
+        // anything else is late (already timed out) or was never asked for and is dropped
+    }
+
+    private static String key(InetSocketAddress server, int id, DNSQuestion question) {
+        return server.getAddress().getHostAddress() + "/" + server.getPort() + "/" + id + "/"
+            + DNSCache.key(question.qName, question.qType, question.qClass);
+    }
+
+    private static class PendingQuery {
+        private final CompletableFuture<byte[]> response;
+        private final int originalId;
+
+        private PendingQuery(CompletableFuture<byte[]> response, int originalId) {
+            this.response = response;
+            this.originalId = originalId;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+// sends queries to upstream servers over tcp, used when a udp response came back truncated
+// every message is sent with a 2 byte length in front of it (RFC 1035 4.2.2)
+// there is one connection per server that is kept open and reused, queries are pipelined on it
+// and responses are matched by id and question in whatever order they come back (RFC 7766 6.2)
+// a connection is closed once nothing has been outstanding on it for a while, or if it cant be
+// connected in time
+
+public class UpstreamTcpEngine implements Runnable {
+    // how long a connection with nothing outstanding stays open
+    public static final int IDLE_TIMEOUT_MILLIS = 10000;
+    // how long connecting can take before the connection and its queries are given up on
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // most queries outstanding on one connection
+    public static final int MAX_PENDING_PER_CONNECTION = 1000;
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+
+    private final Selector selector;
+    // only used on the selector thread
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<>();
+    // queries handed over by callers, the selector thread puts them on their connection
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    public UpstreamTcpEngine() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    // starts the selector thread, it is a daemon so it doesnt keep the resolver alive
+    public void start() {
+        Thread thread = new Thread(this, "upstream-tcp-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // sends the query over the connection to the server (opening it if there is none) and returns a
+    // future that completes with the response bytes, the response gets the callers id back
+    // cancelling the future (e.g. after a timeout) forgets the query but leaves the connection open
+    // the query is a buffer from DNSEncoder (starting at index 0 of its array) like for UpstreamEngine
+    public CompletableFuture<byte[]> query(ByteBuffer dnsQuery, String serverIP, int port) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        try {
+            InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+            DNSQuestion question = new DNSQuestion(12, dnsQuery.array());
+            String questionKey = DNSCache.key(question.qName, question.qType, question.qClass);
+            // the caller can reuse its buffer as soon as this returns so the query is copied into its frame
+            ByteBuffer frame = ByteBuffer.allocate(2 + dnsQuery.remaining());
+            frame.putShort((short) dnsQuery.remaining());
+            frame.put(dnsQuery.duplicate());
+            frame.flip();
+            this.tasks.add(() -> this.send(serverAddress, frame, questionKey, response));
+            this.selector.wakeup();
+        } catch (Exception e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // wakes up at least once a second to close idle connections and ones that wont connect
+                this.selector.select(1000);
+
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selectionKey = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) selectionKey.attachment();
+                    try {
+                        if (selectionKey.isValid() && selectionKey.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            connection.write();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        this.connections.remove(connection.serverAddress, connection);
+                        connection.close(e);
+                    }
+                }
+
+                this.closeStaleConnections();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void send(InetSocketAddress serverAddress, ByteBuffer frame, String questionKey, CompletableFuture<byte[]> response) {
+        if (response.isDone()) {
+            // timed out or cancelled before it got sent
+            return;
+        }
+        Connection connection = this.connections.get(serverAddress);
+        try {
+            if (connection == null) {
+                connection = new Connection(serverAddress);
+                this.connections.put(serverAddress, connection);
+            }
+            connection.send(frame, questionKey, response);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+    }
+
+    private void closeStaleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (connection.isConnectTimedOut(now)) {
+                // its queries may have timed out already but their frames are still queued, so it would never be idle
+                iterator.remove();
+                connection.close(new IOException("Connecting to " + connection.serverAddress + " timed out"));
+            } else if (connection.isIdle(now)) {
+                iterator.remove();
+                connection.close(null);
+            }
+        }
+    }
+
+    private class Connection {
+        private final InetSocketAddress serverAddress;
+        private final SocketChannel channel;
+        private final SelectionKey selectionKey;
+        // keyed by the id the server sees, removed from by whoever completes the future
+        private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+        // framed queries waiting for the socket to take them
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        // holds a partly read response until the rest of it arrives
+        private ByteBuffer readBuffer = ByteBuffer.allocate(UpstreamTcpEngine.INITIAL_READ_BUFFER_SIZE);
+        private long lastActive = System.currentTimeMillis();
+        private final long connectStartedAt = System.currentTimeMillis();
+
+        private Connection(InetSocketAddress serverAddress) throws IOException {
+            this.serverAddress = serverAddress;
+            this.channel = SocketChannel.open();
+            try {
+                this.channel.configureBlocking(false);
+                boolean connected = this.channel.connect(serverAddress);
+                int interest = connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                this.selectionKey = this.channel.register(UpstreamTcpEngine.this.selector, interest, this);
+            } catch (IOException | RuntimeException e) {
+                // nothing else has the channel yet so it would never be closed
+                try {
+                    this.channel.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+                throw e;
+            }
+        }
+
+        private void send(ByteBuffer frame, String questionKey, CompletableFuture<byte[]> response) throws IOException {
+            if (this.pending.size() >= UpstreamTcpEngine.MAX_PENDING_PER_CONNECTION) {
+                throw new IOException("Too many queries outstanding to " + this.serverAddress);
+            }
+
+            // pick an id no other outstanding query on this connection has
+            int originalId = frame.getShort(2) & 0xFFFF;
+            PendingQuery pendingQuery = new PendingQuery(response, originalId, questionKey);
+            int upstreamId;
+            do {
+                upstreamId = ThreadLocalRandom.current().nextInt(65536);
+            } while (this.pending.putIfAbsent(upstreamId, pendingQuery) != null);
+            frame.putShort(2, (short) upstreamId);
+
+            // however the future ends (answered, cancelled, failed) the query is forgotten
+            Integer pendingId = upstreamId;
+            response.whenComplete((bytes, error) -> this.pending.remove(pendingId, pendingQuery));
+
+            this.writeQueue.add(frame);
+            this.lastActive = System.currentTimeMillis();
+            if (this.channel.isConnected()) {
+                this.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void finishConnect() throws IOException {
+            if (this.channel.finishConnect()) {
+                int interest = this.writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                this.selectionKey.interestOps(interest);
+            }
+        }
+
+        private void write() throws IOException {
+            while (!this.writeQueue.isEmpty()) {
+                ByteBuffer frame = this.writeQueue.peek();
+                this.channel.write(frame);
+                if (frame.hasRemaining()) {
+                    // the socket buffer is full, carry on when it is writable again
+                    return;
+                }
+                this.writeQueue.poll();
+            }
+            this.selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            if (this.channel.read(this.readBuffer) < 0) {
+                throw new IOException("Connection closed by " + this.serverAddress);
+            }
+            this.lastActive = System.currentTimeMillis();
+
+            // take out every complete response, a partial one stays in the buffer
+            this.readBuffer.flip();
+            int needed = 0;
+            while (this.readBuffer.remaining() >= 2) {
+                int length = this.readBuffer.getShort(this.readBuffer.position()) & 0xFFFF;
+                if (this.readBuffer.remaining() < 2 + length) {
+                    needed = 2 + length;
+                    break;
+                }
+                this.readBuffer.getShort();
+                byte[] dnsResponseBytes = new byte[length];
+                this.readBuffer.get(dnsResponseBytes);
+                this.dispatch(dnsResponseBytes);
+            }
+            this.readBuffer.compact();
+
+            if (needed > this.readBuffer.capacity()) {
+                // a response bigger than the buffer, grow it so the whole response fits
+                ByteBuffer biggerBuffer = ByteBuffer.allocate(needed);
+                this.readBuffer.flip();
+                biggerBuffer.put(this.readBuffer);
+                this.readBuffer = biggerBuffer;
+            }
+        }
+
+        private void dispatch(byte[] dnsResponseBytes) {
+            if (dnsResponseBytes.length < 12) {
+                // not even a full header
+                return;
+            }
+            int id = ((dnsResponseBytes[0] & 0xFF) << 8) | (dnsResponseBytes[1] & 0xFF);
+            PendingQuery pendingQuery = this.pending.get(id);
+            if (pendingQuery == null) {
+                // late (already timed out) and is dropped
+                return;
+            }
+
+            String questionKey;
+            try {
+                DNSQuestion question = new DNSQuestion(12, dnsResponseBytes);
+                questionKey = DNSCache.key(question.qName, question.qType, question.qClass);
+            } catch (RuntimeException e) {
+                // malformed question, it cant belong to any of our queries
+                return;
+            }
+            if (!questionKey.equals(pendingQuery.questionKey)) {
+                // the id is right but it answers something else, the query goes on waiting
+                return;
+            }
+
+            // put the callers id back
+            dnsResponseBytes[0] = (byte) (pendingQuery.originalId >> 8);
+            dnsResponseBytes[1] = (byte) (pendingQuery.originalId);
+            pendingQuery.response.complete(dnsResponseBytes);
+        }
+
+        private boolean isConnectTimedOut(long now) {
+            return !this.channel.isConnected() && now - this.connectStartedAt > UpstreamTcpEngine.CONNECT_TIMEOUT_MILLIS;
+        }
+
+        private boolean isIdle(long now) {
+            return this.pending.isEmpty() && this.writeQueue.isEmpty() && now - this.lastActive > UpstreamTcpEngine.IDLE_TIMEOUT_MILLIS;
+        }
+
+        // closes the connection and fails whatever was still outstanding on it
+        private void close(IOException error) {
+            this.selectionKey.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            IOException failure = error != null ? error : new IOException("Connection to " + this.serverAddress + " closed");
+            for (PendingQuery pendingQuery : this.pending.values()) {
+                pendingQuery.response.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static class PendingQuery {
+        private final CompletableFuture<byte[]> response;
+        private final int originalId;
+        // DNSCache.key of the question, a response has to have the same one
+        private final String questionKey;
+
+        private PendingQuery(CompletableFuture<byte[]> response, int originalId, String questionKey) {
+            this.response = response;
+            this.originalId = originalId;
+            this.questionKey = questionKey;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// the default package side of dnsbench.Targets, see there for why it exists
+
+public class BenchmarkTargets implements dnsbench.Targets {
+    private FakeAuthServer fakeServer;
+
+    @Override
+    public byte[] referralPacket() {
+        // int id, boolean qr, int opcode, boolean aa, boolean tc, boolean rd, boolean ra, int rcode
+        DNSMessage referral = new DNSMessage(new DNSHeader(0x1234, true, 0, false, false, false, false, 0));
+        referral.addQuestion(new DNSQuestion("www.example.com", 1, 1));
+        for (char server = 'a'; server <= 'm'; server++) {
+            String serverName = server + ".gtld-servers.net";
+            referral.addAuthority(new DNSResourceRecord(BenchmarkTargets.name("com"), 2, 1, 172800, BenchmarkTargets.name(serverName)));
+            byte[] address = { (byte) 192, 5, 6, (byte) (30 + server - 'a') };
+            referral.addAdditional(new DNSResourceRecord(BenchmarkTargets.name(serverName), 1, 1, 172800, address));
+        }
+        referral.addAdditional(DNSResourceRecord.opt(1232));
+        return referral.toByteArray();
+    }
+
+    @Override
+    public byte[] answerPacket() {
+        DNSMessage answer = new DNSMessage(new DNSHeader(0x1234, true, 0, true, false, false, false, 0));
+        answer.addQuestion(new DNSQuestion("www.example.com", 1, 1));
+        answer.addAnswer(new DNSResourceRecord(BenchmarkTargets.name("www.example.com"), 5, 1, 300, BenchmarkTargets.name("www.example.com.cdn.example.net")));
+        answer.addAnswer(new DNSResourceRecord(BenchmarkTargets.name("www.example.com.cdn.example.net"), 1, 1, 60, new byte[] { (byte) 192, 0, 2, 1 }));
+        answer.addAnswer(new DNSResourceRecord(BenchmarkTargets.name("www.example.com.cdn.example.net"), 1, 1, 60, new byte[] { (byte) 192, 0, 2, 2 }));
+        answer.addAuthority(new DNSResourceRecord(BenchmarkTargets.name("example.net"), 2, 1, 3600, BenchmarkTargets.name("ns1.example.net")));
+        answer.addAuthority(new DNSResourceRecord(BenchmarkTargets.name("example.net"), 2, 1, 3600, BenchmarkTargets.name("ns2.example.net")));
+        answer.addAdditional(DNSResourceRecord.opt(1232));
+        return answer.toByteArray();
+    }
+
+    @Override
+    public byte[] compressionChainPacket(int depth) {
+        // every CNAME target is one more label in front of the one before it, so the encoder writes
+        // each as a label and a pointer to the previous target and the last is depth pointers deep
+        DNSMessage chain = new DNSMessage(new DNSHeader(0x1234, true, 0, true, false, false, false, 0));
+        chain.addQuestion(new DNSQuestion("chain.example.com", 5, 1));
+        String target = "example.com";
+        for (int i = 0; i < depth; i++) {
+            target = "l" + i + "." + target;
+            chain.addAnswer(new DNSResourceRecord(BenchmarkTargets.name("chain.example.com"), 5, 1, 300, BenchmarkTargets.name(target)));
+        }
+        return chain.toByteArray();
+    }
+
+    @Override
+    public Object parse(byte[] dnsMessageBytes) {
+        return new DNSMessage(dnsMessageBytes);
+    }
+
+    @Override
+    public byte[] toByteArray(Object dnsMessage) {
+        return ((DNSMessage) dnsMessage).toByteArray();
+    }
+
+    @Override
+    public Object question(String name) {
+        return new DNSQuestion(name, 1, 1);
+    }
+
+    @Override
+    public int questionByteLength(Object question) {
+        return ((DNSQuestion) question).getByteLength();
+    }
+
+    @Override
+    public String extractLastAnswerName(Object dnsMessage) {
+        DNSMessage message = (DNSMessage) dnsMessage;
+        return message.extractDomainFromRData(message.answers.get(message.answers.size() - 1).rdata);
+    }
+
+    @Override
+    public int startFakeServer(String zoneText) throws IOException {
+        this.fakeServer = FakeAuthServer.serveZone("127.0.0.1", 0, zoneText);
+        return this.fakeServer.getPort();
+    }
+
+    @Override
+    public void stopFakeServer() throws IOException {
+        this.fakeServer.close();
+    }
+
+    @Override
+    public void startResolver(int upstreamPort) throws IOException {
+        // the resolver logs every server it contacts, that would be timed along with the resolution
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Resolver.upstreamPort = upstreamPort;
+        Resolver.startResolving(2);
+        RootHints.update(List.of("127.0.0.1"));
+    }
+
+    @Override
+    public Object query(String name) {
+        // int id, boolean qr, int opcode, boolean aa, boolean tc, boolean rd, boolean ra, int rcode
+        DNSMessage dnsQuery = new DNSMessage(new DNSHeader(0x1234, false, 0, false, false, false, false, 0));
+        dnsQuery.addQuestion(new DNSQuestion(name, 1, 1));
+        return dnsQuery;
+    }
+
+    @Override
+    public Object resolveDomainName(Object dnsQuery) throws IOException {
+        return Resolver.resolveDomainName((DNSMessage) dnsQuery, System.currentTimeMillis() + 5000, 0);
+    }
+
+    // the name in wire format without compression
+    private static byte[] name(String name) {
+        byte[] wireName = new byte[name.length() + 2];
+        int index = 0;
+        for (String label : name.split("\\.")) {
+            wireName[index++] = (byte) label.length();
+            for (int i = 0; i < label.length(); i++) {
+                wireName[index++] = (byte) label.charAt(i);
+            }
+        }
+        wireName[index] = 0x00;
+        return wireName;
+    }
+}
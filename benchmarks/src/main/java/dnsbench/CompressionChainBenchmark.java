@@ -0,0 +1,49 @@
+package dnsbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// extractDomainFromRData on a name at the end of a chain of compression pointers
+// a message remembers the names it decoded, so each operation parses a fresh message first,
+// parseOnly is that part alone to subtract
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionChainBenchmark {
+
+    @Param({ "1", "8", "32" })
+    public int depth;
+
+    private Targets targets;
+    private byte[] chainBytes;
+
+    @Setup
+    public void setUp() {
+        this.targets = Targets.load();
+        this.chainBytes = this.targets.compressionChainPacket(this.depth);
+    }
+
+    @Benchmark
+    public String extractDomainFromRData() {
+        return this.targets.extractLastAnswerName(this.targets.parse(this.chainBytes));
+    }
+
+    @Benchmark
+    public Object parseOnly() {
+        return this.targets.parse(this.chainBytes);
+    }
+}
@@ -0,0 +1,56 @@
+package dnsbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// a whole resolveDomainName against FakeAuthServer on loopback, no caches in front of it
+// the fake is the only root and serves example.com itself so this is one upstream round trip
+// through the upstream engine, the racing and the parsing of the response
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark {
+    private static final String ZONE =
+        "$ORIGIN example.com.\n"
+        + "$TTL 300\n"
+        + "@    IN  SOA  ns1 hostmaster 1 3600 600 86400 300\n"
+        + "@    IN  NS   ns1\n"
+        + "ns1  IN  A    127.0.0.1\n"
+        + "www  IN  A    192.0.2.1\n";
+
+    private Targets targets;
+    private Object dnsQuery;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.targets = Targets.load();
+        int port = this.targets.startFakeServer(ResolutionBenchmark.ZONE);
+        this.targets.startResolver(port);
+        this.dnsQuery = this.targets.query("www.example.com");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.targets.stopFakeServer();
+    }
+
+    @Benchmark
+    public Object resolveDomainName() throws IOException {
+        return this.targets.resolveDomainName(this.dnsQuery);
+    }
+}
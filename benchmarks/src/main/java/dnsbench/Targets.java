@@ -0,0 +1,52 @@
+package dnsbench;
+
+import java.io.IOException;
+
+// what the benchmarks call in the resolver
+// the resolver classes are in the default package, which a named package cant import, and jmh
+// wont run benchmarks from the default package, so BenchmarkTargets (in the default package)
+// implements this and the benchmarks load it by name once in their setup
+// messages and questions are passed around as Object since their classes cant be named here
+public interface Targets {
+
+    static Targets load() {
+        try {
+            return (Targets) Class.forName("BenchmarkTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkTargets isnt on the classpath", e);
+        }
+    }
+
+    // a referral from a root server to the 13 com servers with their glue, as sent on the wire
+    byte[] referralPacket();
+
+    // an answer with a CNAME, the addresses it points to and the authority for them
+    byte[] answerPacket();
+
+    // an answer whose last record has a name depth compression pointers deep
+    byte[] compressionChainPacket(int depth);
+
+    Object parse(byte[] dnsMessageBytes);
+
+    byte[] toByteArray(Object dnsMessage);
+
+    Object question(String name);
+
+    int questionByteLength(Object question);
+
+    // the name in the rdata of the last answer, pointers followed against the message
+    String extractLastAnswerName(Object dnsMessage);
+
+    // serves the zone (the text of a zone file) authoritatively from FakeAuthServer on 127.0.0.1
+    // on a port the os picks so it doesnt need root, returns the port
+    int startFakeServer(String zoneText) throws IOException;
+
+    void stopFakeServer() throws IOException;
+
+    // readies the resolver to resolve with 127.0.0.1 on the port as its only root server
+    void startResolver(int upstreamPort) throws IOException;
+
+    Object query(String name);
+
+    Object resolveDomainName(Object dnsQuery) throws IOException;
+}
@@ -0,0 +1,66 @@
+package dnsbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// parsing and serializing the messages the resolver handles most, referrals and answers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private Targets targets;
+    private byte[] referralBytes;
+    private byte[] answerBytes;
+    private Object referral;
+    private Object answer;
+    private Object question;
+
+    @Setup
+    public void setUp() {
+        this.targets = Targets.load();
+        this.referralBytes = this.targets.referralPacket();
+        this.answerBytes = this.targets.answerPacket();
+        this.referral = this.targets.parse(this.referralBytes);
+        this.answer = this.targets.parse(this.answerBytes);
+        this.question = this.targets.question("www.example.com");
+    }
+
+    @Benchmark
+    public Object parseReferral() {
+        return this.targets.parse(this.referralBytes);
+    }
+
+    @Benchmark
+    public Object parseAnswer() {
+        return this.targets.parse(this.answerBytes);
+    }
+
+    @Benchmark
+    public byte[] toByteArrayReferral() {
+        return this.targets.toByteArray(this.referral);
+    }
+
+    @Benchmark
+    public byte[] toByteArrayAnswer() {
+        return this.targets.toByteArray(this.answer);
+    }
+
+    @Benchmark
+    public int questionByteLength() {
+        return this.targets.questionByteLength(this.question);
+    }
+}